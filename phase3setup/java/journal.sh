@@ -0,0 +1,10 @@
+#!/bin/bash
+root=$(realpath $(dirname "$0"))
+root=$(dirname $root)
+
+cd $root/java
+
+# Example: ./journal.sh            print every booking event
+#          ./journal.sh --follow   keep printing new events as they happen
+#          ./journal.sh --replay   print the resulting state of each booking
+java -cp lib/*:bin/ JournalReader journal "$@"
@@ -6,4 +6,5 @@ dbname=$(logname)_db
 cd $root/java
 
 # Example: ./run.sh
-java -cp lib/*:bin/ Ticketmaster $dbname $PGPORT $(logname)
+# Read replicas: REPLICA_PORTS="5433 5434" ./run.sh
+java -cp lib/*:bin/ Ticketmaster $dbname $PGPORT $(logname) $REPLICA_PORTS
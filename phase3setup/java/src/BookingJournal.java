@@ -0,0 +1,293 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * This class is an append-only journal of booking state changes.  Events are
+ * fixed size binary records written to memory-mapped segment files
+ * (journal-0000000000.log, journal-0000000001.log, ...).  append() only
+ * queues the event; a background flusher copies queued events into the
+ * mapping and forces it to disk, so the booking path never waits on I/O.
+ * JournalReader replays or tails the files.
+ *
+ * Record layout, big endian, RECORD_SIZE bytes:
+ *   long time (ms since epoch), long bid, long sid, long ssid, long aux,
+ *   byte type, byte status, short reserved, int crc32 of the first 44 bytes
+ * An all zero record (type NONE) marks the end of the written part.
+ *
+ */
+public class BookingJournal {
+	public static final int RECORD_SIZE = 48;
+	public static final int SEGMENT_RECORDS = 1 << 18;
+	public static final long SEGMENT_SIZE = (long) RECORD_SIZE * SEGMENT_RECORDS;
+	static final int TYPE_OFFSET = 40;
+	static final int CRC_OFFSET = 44;
+
+	//event types
+	public static final byte NONE = 0;
+	public static final byte BOOKING_ADDED = 1;
+	public static final byte SEAT_RELEASED = 2;
+	public static final byte SEAT_ASSIGNED = 3;
+	public static final byte BOOKING_CANCELLED = 4;
+	public static final byte PAYMENT_REMOVED = 5;
+	public static final byte BOOKING_CLEARED = 6;
+
+	//booking status codes
+	public static final byte NO_STATUS = 0;
+	public static final byte PENDING = 1;
+	public static final byte PAID = 2;
+	public static final byte CANCELLED = 3;
+
+	//events queued before append() starts waiting for the flusher
+	private static final int QUEUE_CAPACITY = 1 << 16;
+	//how often the flusher forces written pages to disk
+	private static final long FORCE_INTERVAL_MS = 200;
+	//held by the process writing a journal directory
+	static final String LOCK_FILE = "journal.lock";
+
+	//queued event, fields as in the record layout
+	private static class Event {
+		final long time, bid, sid, ssid, aux;
+		final byte type, status;
+
+		Event(byte type, long bid, long sid, long ssid, long aux, byte status) {
+			this.time = System.currentTimeMillis();
+			this.type = type;
+			this.bid = bid;
+			this.sid = sid;
+			this.ssid = ssid;
+			this.aux = aux;
+			this.status = status;
+		}
+	}
+
+	private static final Event STOP = new Event(NONE, 0, 0, 0, 0, NO_STATUS);
+
+	private final File _dir;
+	private final BlockingQueue<Event> _queue = new ArrayBlockingQueue<Event>(QUEUE_CAPACITY);
+	private final Thread _flusher;
+	private final CRC32 _crc = new CRC32();
+	private final byte[] _record = new byte[RECORD_SIZE];
+	private int _segment;
+	private RandomAccessFile _file;
+	private MappedByteBuffer _map;
+	private volatile IOException _failure = null;
+	private final RandomAccessFile _lockFile;
+	private final FileLock _lock;
+
+	/**
+	 * Opens the journal in a directory, continuing after the last written
+	 * record of the newest segment.  Only one process may write a journal
+	 * directory at a time: two writers would both continue at the same
+	 * offset and overwrite each other's records.
+	 *
+	 * @param dir the journal directory, created if missing
+	 * @throws java.io.IOException when another process is writing the
+	 *         directory or the segment cannot be mapped
+	 */
+	public BookingJournal(File dir) throws IOException {
+		this._dir = dir;
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Unable to create journal directory " + dir);
+		}
+		this._lockFile = new RandomAccessFile(new File(dir, LOCK_FILE), "rw");
+		FileLock lock = null;
+		try {
+			lock = _lockFile.getChannel().tryLock();
+		} catch (OverlappingFileLockException e) {
+			// held by this process, in use all the same.
+		}
+		if (lock == null) {
+			_lockFile.close();
+			throw new IOException("Journal directory " + dir + " is in use by another process");
+		}
+		this._lock = lock;
+		try {
+			int[] segments = segments(dir);
+			this._segment = segments.length == 0 ? 0 : segments[segments.length - 1];
+			map(_segment);
+			_map.position(firstFree(_map));
+		} catch (IOException e) {
+			_lockFile.close();
+			throw e;
+		}
+
+		this._flusher = new Thread(new Runnable() {
+			public void run() {
+				flushLoop();
+			}
+		}, "booking-journal-flusher");
+		this._flusher.setDaemon(true);
+		this._flusher.start();
+	}
+
+	/**
+	 * Method to queue an event.  Returns without I/O unless the flusher has
+	 * fallen QUEUE_CAPACITY events behind.
+	 *
+	 * @param type the event type
+	 * @param bid the booking ID, 0 if none
+	 * @param sid the show ID, 0 if none
+	 * @param ssid the show seat ID, 0 if none
+	 * @param aux event specific value (the payment ID for PAYMENT_REMOVED)
+	 * @param status the booking status after the event
+	 */
+	public void append(byte type, long bid, long sid, long ssid, long aux, byte status) {
+		if (_failure != null) {
+			return;
+		}
+		try {
+			_queue.put(new Event(type, bid, sid, ssid, aux, status));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Method to map a status string of the Bookings table to its code.
+	 *
+	 * @param status the status as stored in Bookings
+	 * @return the status code
+	 */
+	public static byte statusCode(String status) {
+		if (status == null) return NO_STATUS;
+		if (status.contains("Pending")) return PENDING;
+		if (status.contains("Paid")) return PAID;
+		if (status.contains("Cancelled")) return CANCELLED;
+		return NO_STATUS;
+	}
+
+	/**
+	 * Method to write out every queued event, force it to disk and stop the
+	 * flusher.
+	 *
+	 * @throws java.io.IOException when the flusher failed to write
+	 */
+	public void close() throws IOException {
+		try {
+			_queue.put(STOP);
+			_flusher.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		//closing the file releases the lock
+		_lockFile.close();
+		if (_failure != null) {
+			throw _failure;
+		}
+	}
+
+	private void flushLoop() {
+		List<Event> batch = new ArrayList<Event>();
+		long lastForce = System.currentTimeMillis();
+		boolean dirty = false;
+		try {
+			while (true) {
+				Event first = _queue.poll(FORCE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+				if (first != null) {
+					batch.add(first);
+					_queue.drainTo(batch);
+					for (Event event : batch) {
+						if (event == STOP) {
+							_map.force();
+							_file.close();
+							return;
+						}
+						write(event);
+						dirty = true;
+					}
+					batch.clear();
+				}
+				if (dirty && System.currentTimeMillis() - lastForce >= FORCE_INTERVAL_MS) {
+					_map.force();
+					lastForce = System.currentTimeMillis();
+					dirty = false;
+				}
+			}
+		} catch (IOException e) {
+			_failure = e;
+			_queue.clear();
+		} catch (InterruptedException e) {
+			// stopping.
+		}
+	}
+
+	private void write(Event event) throws IOException {
+		if (_map.remaining() < RECORD_SIZE) {
+			_map.force();
+			_file.close();
+			map(++_segment);
+		}
+		ByteBuffer record = ByteBuffer.wrap(_record);
+		record.putLong(event.time).putLong(event.bid).putLong(event.sid)
+			.putLong(event.ssid).putLong(event.aux)
+			.put(event.type).put(event.status).putShort((short) 0);
+		_crc.reset();
+		_crc.update(_record, 0, CRC_OFFSET);
+		record.putInt((int) _crc.getValue());
+		_map.put(_record);
+	}
+
+	private void map(int segment) throws IOException {
+		_file = new RandomAccessFile(segmentFile(_dir, segment), "rw");
+		_map = _file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+	}
+
+	/**
+	 * Method to find the byte offset of the first unwritten record of a
+	 * segment.  Records are written in order, so the written part is a
+	 * prefix and can be binary searched on the type byte.
+	 *
+	 * @param map the mapped segment
+	 * @return the offset just after the last written record
+	 */
+	static int firstFree(ByteBuffer map) {
+		int lo = 0, hi = map.capacity() / RECORD_SIZE;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (map.get(mid * RECORD_SIZE + TYPE_OFFSET) != NONE) lo = mid + 1; else hi = mid;
+		}
+		return lo * RECORD_SIZE;
+	}
+
+	static File segmentFile(File dir, int segment) {
+		return new File(dir, String.format("journal-%010d.log", segment));
+	}
+
+	//the segment numbers found in dir, ascending
+	static int[] segments(File dir) {
+		String[] names = dir.list();
+		if (names == null) {
+			return new int[0];
+		}
+		int[] found = new int[names.length];
+		int count = 0;
+		for (String name : names) {
+			if (name.startsWith("journal-") && name.endsWith(".log")) {
+				int segment;
+				try {
+					segment = Integer.parseInt(name.substring(8, name.length() - 4));
+				} catch (NumberFormatException e) {
+					// not a segment.
+					continue;
+				}
+				found[count++] = segment;
+			}
+		}
+		found = Arrays.copyOf(found, count);
+		Arrays.sort(found);
+		return found;
+	}
+}
@@ -0,0 +1,93 @@
+import java.sql.SQLException;
+
+/**
+ * This class sheds load while the database is struggling.  After
+ * FAILURE_THRESHOLD consecutive calls that timed out, hit a lock timeout,
+ * lost the connection or ran slower than their policy allows, the breaker
+ * opens and every call fails immediately for OPEN_MS instead of queueing
+ * behind the slow ones.  Then a single trial call is let through: if it
+ * goes well the breaker closes, otherwise it stays open for another OPEN_MS.
+ *
+ */
+public class CircuitBreaker {
+	public enum State {CLOSED, OPEN, HALF_OPEN}
+
+	//SQLSTATE the breaker rejects calls with, cannot_connect_now
+	public static final String REJECTED = "57P03";
+	private static final int FAILURE_THRESHOLD = Integer.getInteger("ticketmaster.breaker.failures", 5);
+	private static final long OPEN_MS = Long.getLong("ticketmaster.breaker.openMs", 10000L);
+
+	private State _state = State.CLOSED;
+	private int _failures = 0;
+	private long _openedAt = 0;
+	private boolean _trialRunning = false;
+
+	/**
+	 * Method to ask for permission to make a call.  Every call let through
+	 * must be followed by exactly one onSuccess, onFailure or onIgnored.
+	 *
+	 * @throws java.sql.SQLException with SQLSTATE REJECTED when the breaker
+	 *         is open
+	 */
+	public synchronized void acquire() throws SQLException {
+		if (_state == State.OPEN) {
+			long wait = _openedAt + OPEN_MS - System.currentTimeMillis();
+			if (wait > 0) {
+				throw new SQLException("The database is overloaded, try again in "
+					+ (wait + 999) / 1000 + " seconds.", REJECTED);
+			}
+			_state = State.HALF_OPEN;
+			_trialRunning = false;
+		}
+		if (_state == State.HALF_OPEN) {
+			if (_trialRunning) {
+				throw new SQLException("The database is overloaded, try again in a few seconds.", REJECTED);
+			}
+			_trialRunning = true;
+		}
+	}
+
+	public synchronized void onSuccess() {
+		_failures = 0;
+		_trialRunning = false;
+		_state = State.CLOSED;
+	}
+
+	public synchronized void onFailure() {
+		_failures++;
+		_trialRunning = false;
+		if (_state == State.HALF_OPEN || _failures >= FAILURE_THRESHOLD) {
+			_state = State.OPEN;
+			_openedAt = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Method to end a call whose outcome says nothing about the database,
+	 * such as one the user canceled.  Counts neither way; a canceled trial
+	 * call lets the next call be the trial.
+	 */
+	public synchronized void onIgnored() {
+		_trialRunning = false;
+	}
+
+	public synchronized State state() {
+		return _state;
+	}
+
+	/**
+	 * Method to tell whether an error means the database is overloaded or
+	 * unreachable, as opposed to a problem with the statement itself.
+	 *
+	 * @param e the error of a call
+	 * @return true if the error should count against the database
+	 */
+	public static boolean isOverload(SQLException e) {
+		String state = e.getSQLState();
+		if (state == null) return false;
+		return state.equals("57014")	//query_canceled, includes statement_timeout
+			|| state.equals("55P03")	//lock_not_available, lock_timeout
+			|| state.startsWith("08")	//connection exception
+			|| state.startsWith("53");	//insufficient resources
+	}
+}
@@ -0,0 +1,119 @@
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class decides which physical connection a statement runs on.  Writes
+ * always go to the primary.  Reads go round-robin over the replicas unless
+ * their staleness policy requires the primary, i.e. this session wrote
+ * within the staleness window.  Writes are also recorded per user, so a
+ * client shared by several users could narrow that to the user's own.
+ *
+ */
+public class ConnectionRouter {
+	/**
+	 * How stale a read may be.
+	 */
+	public enum Staleness {
+		//always read from the primary
+		PRIMARY,
+		//read from a replica unless this session wrote within the window
+		READ_YOUR_WRITES,
+		//any replica will do
+		ANY
+	}
+
+	//key used for writes that are not tied to a single user
+	private static final String SESSION = "";
+
+	private final Connection _primary;
+	private final List<Connection> _replicas;
+	private final long _stalenessNanos;
+	private final AtomicInteger _next = new AtomicInteger();
+	private final Map<String, Long> _lastWrite = new ConcurrentHashMap<String, Long>();
+
+	/**
+	 * @param primary the connection to the primary
+	 * @param replicas the connections to the replicas, may be empty
+	 * @param stalenessMillis how long reads of a user stick to the primary
+	 *        after that user wrote
+	 */
+	public ConnectionRouter(Connection primary, List<Connection> replicas, long stalenessMillis) {
+		this._primary = primary;
+		this._replicas = new ArrayList<Connection>(replicas);
+		this._stalenessNanos = stalenessMillis * 1000000L;
+	}
+
+	public Connection primary() {
+		return _primary;
+	}
+
+	public int replicaCount() {
+		return _replicas.size();
+	}
+
+	/**
+	 * Method to pick the connection for a read.
+	 *
+	 * @param user the user the read is for, or null if it is not tied to one
+	 * @param staleness the staleness policy of the operation
+	 * @return the connection to run the read on
+	 */
+	public Connection forRead(String user, Staleness staleness) {
+		if (_replicas.isEmpty() || staleness == Staleness.PRIMARY) {
+			return _primary;
+		}
+		if (staleness == Staleness.READ_YOUR_WRITES
+				&& (wroteRecently(SESSION) || (user != null && wroteRecently(user)))) {
+			return _primary;
+		}
+		int i = (_next.getAndIncrement() & Integer.MAX_VALUE) % _replicas.size();
+		return _replicas.get(i);
+	}
+
+	/**
+	 * Method to record that a user wrote to the primary.  The session is
+	 * marked as well: reads not tied to a user (lists over every user's
+	 * bookings, say) must also see the write.
+	 *
+	 * @param user the user that wrote, or null for a write that may affect
+	 *        any user
+	 */
+	public void markWrite(String user) {
+		long now = System.nanoTime();
+		_lastWrite.put(SESSION, now);
+		if (user != null) {
+			_lastWrite.put(user, now);
+		}
+	}
+
+	/**
+	 * Method to close every replica connection.  The primary is closed by
+	 * its owner.
+	 */
+	public void close() {
+		for (Connection replica : _replicas) {
+			try {
+				replica.close();
+			} catch (SQLException e) {
+				// ignored.
+			}
+		}
+	}
+
+	private boolean wroteRecently(String user) {
+		Long at = _lastWrite.get(user);
+		if (at == null) {
+			return false;
+		}
+		if (System.nanoTime() - at < _stalenessNanos) {
+			return true;
+		}
+		_lastWrite.remove(user, at);
+		return false;
+	}
+}
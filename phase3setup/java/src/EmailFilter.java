@@ -0,0 +1,158 @@
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * This class is a Bloom filter over Users.email.  mightContain() returning
+ * false means the email is definitely not registered, so signup and booking
+ * can answer unknown emails without a round trip; true means it probably is
+ * and has to be confirmed with a keyed lookup.  A filter only stays
+ * definite if every email inserted after its scan is added to it: the
+ * trigger in create.sql sends each one on CHANNEL, and bulk loads send an
+ * empty payload instead, meaning the filter must be rebuilt.
+ *
+ */
+public class EmailFilter {
+	//channel the trigger in create.sql notifies with each new email
+	public static final String CHANNEL = "user_added";
+
+	//target false positive rate at the expected number of emails
+	private static final double FALSE_POSITIVE_RATE = 0.01;
+	//room for growth before the filter counts as saturated
+	private static final int GROWTH = 2;
+	private static final int FETCH_SIZE = 10000;
+
+	private final long[] _bits;
+	private final long _numBits;
+	private final int _numHashes;
+	private final long _capacity;
+	private long _count = 0;
+
+	/**
+	 * @param expected the number of emails the filter should hold at the
+	 *        target false positive rate
+	 */
+	public EmailFilter(long expected) {
+		long n = Math.max(expected, 1024);
+		long m = (long) Math.ceil(-n * Math.log(FALSE_POSITIVE_RATE) / (Math.log(2) * Math.log(2)));
+		this._bits = new long[(int) ((m + 63) / 64)];
+		this._numBits = (long) _bits.length * 64;
+		this._numHashes = Math.max(1, (int) Math.round((double) _numBits / n * Math.log(2)));
+		this._capacity = n;
+	}
+
+	/**
+	 * Method to build a filter holding every email in Users.  The emails are
+	 * streamed through a server side cursor, never held in memory.
+	 *
+	 * @param conn the connection to read from
+	 * @return the filled filter
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public static EmailFilter load(Connection conn) throws SQLException {
+		boolean autoCommit = conn.getAutoCommit();
+		conn.setAutoCommit(false);
+		Statement stmt = conn.createStatement();
+		try {
+			ResultSet count = stmt.executeQuery("SELECT COUNT(*) FROM Users");
+			count.next();
+			EmailFilter filter = new EmailFilter(count.getLong(1) * GROWTH);
+
+			stmt.setFetchSize(FETCH_SIZE);
+			ResultSet rs = stmt.executeQuery("SELECT email FROM Users");
+			while (rs.next()) {
+				filter.add(rs.getString(1));
+			}//end while
+			return filter;
+		} finally {
+			stmt.close();
+			if (autoCommit) {
+				conn.rollback();
+				conn.setAutoCommit(true);
+			}
+		}
+	}
+
+	/**
+	 * Method to subscribe a connection to new emails on CHANNEL.  Call it
+	 * before load() so no email added in between is missed.
+	 *
+	 * @param conn the connection that will poll for new emails
+	 * @throws java.sql.SQLException when failed to execute LISTEN
+	 */
+	public static void listen(Connection conn) throws SQLException {
+		Statement stmt = conn.createStatement();
+		try {
+			stmt.execute("LISTEN " + CHANNEL);
+		} finally {
+			stmt.close();
+		}
+	}
+
+	/**
+	 * Method to record a registered email.
+	 *
+	 * @param email the email
+	 */
+	public synchronized void add(String email) {
+		long h = hash(email);
+		long h1 = mix(h);
+		long h2 = mix(h ^ 0x9E3779B97F4A7C15L) | 1;
+		for (int i = 0; i < _numHashes; i++) {
+			long bit = Math.floorMod(h1 + i * h2, _numBits);
+			_bits[(int) (bit >>> 6)] |= 1L << bit;
+		}
+		_count++;
+	}
+
+	/**
+	 * Method to test an email.
+	 *
+	 * @param email the email
+	 * @return false if the email is definitely not registered, true if it
+	 *         probably is
+	 */
+	public synchronized boolean mightContain(String email) {
+		long h = hash(email);
+		long h1 = mix(h);
+		long h2 = mix(h ^ 0x9E3779B97F4A7C15L) | 1;
+		for (int i = 0; i < _numHashes; i++) {
+			long bit = Math.floorMod(h1 + i * h2, _numBits);
+			if ((_bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Method to tell whether more emails were added than the filter was
+	 * sized for, so its false positive rate is above target.
+	 *
+	 * @return true if the filter should be rebuilt larger
+	 */
+	public synchronized boolean isSaturated() {
+		return _count > _capacity;
+	}
+
+	//64 bit FNV-1a over the UTF-16 code units
+	private static long hash(String s) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < s.length(); i++) {
+			h ^= s.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		return h;
+	}
+
+	//murmur3 finalizer, spreads the FNV bits over the whole word
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
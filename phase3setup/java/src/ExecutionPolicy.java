@@ -0,0 +1,102 @@
+import java.sql.SQLException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * This class holds how the statements of one kind of operation are run:
+ * the server side statement and lock timeouts, how often a statement that
+ * lost a serialization conflict or deadlock is retried, and how long a call
+ * may take before the circuit breaker counts it as slow.  Every value can be
+ * overridden with a system property ticketmaster.policy.<name>.<field>,
+ * e.g. -Dticketmaster.policy.browse.statementTimeoutMs=2000.  A timeout of 0
+ * means no timeout.
+ *
+ */
+public class ExecutionPolicy {
+	//SQLSTATEs of errors that are resolved by running the statement again
+	private static final String SERIALIZATION_FAILURE = "40001";
+	private static final String DEADLOCK_DETECTED = "40P01";
+	//the longest a single backoff may grow to
+	private static final long MAX_BACKOFF_MS = 2000;
+
+	//interactive writes, short lock waits so a held seat fails fast
+	public static final ExecutionPolicy BOOKING = named("booking", 10000, 2000, 3, 50, 2000);
+	//interactive reads
+	public static final ExecutionPolicy BROWSE = named("browse", 5000, 1000, 2, 20, 1000);
+	//exports and aggregates, long running by design so never counted as slow
+	public static final ExecutionPolicy REPORT = named("report", 300000, 5000, 1, 200, 0);
+	//bulk loads, batches may wait on locks but are not retried
+	public static final ExecutionPolicy BULK = named("bulk", 0, 30000, 0, 0, 0);
+	public static final ExecutionPolicy DEFAULT = named("default", 30000, 5000, 2, 50, 5000);
+
+	public final String name;
+	public final int statementTimeoutMs;
+	public final int lockTimeoutMs;
+	public final int maxRetries;
+	public final int backoffMs;
+	//calls slower than this count as failures for the circuit breaker, 0 to never
+	public final int slowCallMs;
+
+	public ExecutionPolicy(String name, int statementTimeoutMs, int lockTimeoutMs, int maxRetries, int backoffMs, int slowCallMs) {
+		this.name = name;
+		this.statementTimeoutMs = statementTimeoutMs;
+		this.lockTimeoutMs = lockTimeoutMs;
+		this.maxRetries = maxRetries;
+		this.backoffMs = backoffMs;
+		this.slowCallMs = slowCallMs;
+	}
+
+	private static ExecutionPolicy named(String name, int statementTimeoutMs, int lockTimeoutMs, int maxRetries, int backoffMs, int slowCallMs) {
+		String prefix = "ticketmaster.policy." + name + ".";
+		return new ExecutionPolicy(name,
+			Integer.getInteger(prefix + "statementTimeoutMs", statementTimeoutMs),
+			Integer.getInteger(prefix + "lockTimeoutMs", lockTimeoutMs),
+			Integer.getInteger(prefix + "maxRetries", maxRetries),
+			Integer.getInteger(prefix + "backoffMs", backoffMs),
+			Integer.getInteger(prefix + "slowCallMs", slowCallMs));
+	}
+
+	/**
+	 * Method to pick the policy of a main menu operation.
+	 *
+	 * @param choice the main menu choice
+	 * @return the policy its statements run under
+	 */
+	public static ExecutionPolicy forOperation(int choice) {
+		if (choice >= 1 && choice <= 8) return BOOKING;
+		if ((choice >= 9 && choice <= 15) || choice == 19 || choice == 20) return BROWSE;
+		if (choice == 16 || choice == 17 || choice == 21) return REPORT;
+		if (choice == 18) return BULK;
+		return DEFAULT;
+	}
+
+	/**
+	 * Method to tell whether a failed statement may simply be run again.
+	 * Only serialization failures and deadlocks qualify: in both cases the
+	 * server rolled the statement back without applying any of it.
+	 *
+	 * @param e the error of the statement
+	 * @return true if running the statement again can succeed
+	 */
+	public static boolean isRetryable(SQLException e) {
+		String state = e.getSQLState();
+		return SERIALIZATION_FAILURE.equals(state) || DEADLOCK_DETECTED.equals(state);
+	}
+
+	/**
+	 * Method to compute the wait before a retry, exponential in the attempt
+	 * with full jitter so clients that collided do not collide again.
+	 *
+	 * @param attempt the retry about to be made, starting at 0
+	 * @return the wait in milliseconds
+	 */
+	public long backoff(int attempt) {
+		long cap = Math.min(MAX_BACKOFF_MS, (long) backoffMs << Math.min(attempt, 16));
+		return cap <= 0 ? 0 : ThreadLocalRandom.current().nextLong(cap + 1);
+	}
+
+	@Override
+	public String toString() {
+		return name + " (statement timeout " + statementTimeoutMs + " ms, lock timeout "
+			+ lockTimeoutMs + " ms, " + maxRetries + " retries)";
+	}
+}
@@ -0,0 +1,77 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * This class hands out primary keys from the id sequences in create.sql
+ * using the hi-lo scheme.  Each sequence increments by BLOCK_SIZE, so one
+ * nextval reserves the ids [value, value + BLOCK_SIZE) for this process and
+ * the next BLOCK_SIZE - 1 ids are allocated without a round trip.  Ids are
+ * unique across every process drawing from the same sequence.
+ *
+ */
+public class IdAllocator {
+	//must match the INCREMENT BY of the sequences in create.sql
+	public static final int BLOCK_SIZE = 1000;
+
+	public static final String BOOKINGS = "bookings_bid_seq";
+	public static final String PAYMENTS = "payments_pid_seq";
+	public static final String SHOWS = "shows_sid_seq";
+	public static final String MOVIES = "movies_mvid_seq";
+	public static final String SHOW_SEATS = "showseats_ssid_seq";
+
+	private final Connection _connection;
+	private final Map<String, Block> _blocks = new HashMap<String, Block>();
+
+	//the reserved range of one sequence, next is the id handed out next
+	private static class Block {
+		long next = 0;
+		long end = 0;
+	}
+
+	public IdAllocator(Connection connection) {
+		this._connection = connection;
+	}
+
+	/**
+	 * Method to allocate the next id of a sequence.  Only the call that
+	 * exhausts a block goes to the database.
+	 *
+	 * @param sequence name of the DB sequence
+	 * @return a fresh id
+	 * @throws java.sql.SQLException when failed to reserve a new block
+	 */
+	public long next(String sequence) throws SQLException {
+		Block block;
+		synchronized (_blocks) {
+			block = _blocks.get(sequence);
+			if (block == null) {
+				block = new Block();
+				_blocks.put(sequence, block);
+			}
+		}
+		//allocations from other sequences do not wait on this one's refill
+		synchronized (block) {
+			if (block.next == block.end) {
+				block.next = reserve(sequence);
+				block.end = block.next + BLOCK_SIZE;
+			}
+			return block.next++;
+		}
+	}
+
+	private long reserve(String sequence) throws SQLException {
+		PreparedStatement stmt = _connection.prepareStatement("SELECT nextval(?)");
+		try {
+			stmt.setString(1, sequence);
+			ResultSet rs = stmt.executeQuery();
+			rs.next();
+			return rs.getLong(1);
+		} finally {
+			stmt.close();
+		}
+	}
+}
@@ -0,0 +1,199 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * This class reads the booking journal written by BookingJournal.  It either
+ * prints every event, keeps printing new events as they are appended
+ * (--follow), or replays the events into the resulting booking status and
+ * seat assignment of every booking (--replay).
+ *
+ */
+public class JournalReader {
+	private static final String[] TYPES = {"NONE", "BOOKING_ADDED", "SEAT_RELEASED",
+		"SEAT_ASSIGNED", "BOOKING_CANCELLED", "PAYMENT_REMOVED", "BOOKING_CLEARED"};
+	private static final String[] STATUSES = {"-", "Pending", "Paid", "Cancelled"};
+	//how long --follow waits before looking for new events again
+	private static final long POLL_MS = 200;
+
+	private final File _dir;
+	private final CRC32 _crc = new CRC32();
+	private final byte[] _record = new byte[BookingJournal.RECORD_SIZE];
+
+	//final state of a booking after replay
+	private static class Booking {
+		byte status = BookingJournal.NO_STATUS;
+		long sid = 0;
+		boolean cleared = false;
+		boolean paymentRemoved = false;
+		final List<Long> seats = new ArrayList<Long>();
+	}
+
+	public JournalReader(File dir) {
+		this._dir = dir;
+	}
+
+	/**
+	 * The main execution method
+	 *
+	 * @param args the command line arguments: the journal directory and
+	 *        optionally --follow or --replay
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length < 1 || args.length > 2
+				|| (args.length == 2 && !args[1].equals("--follow") && !args[1].equals("--replay"))) {
+			System.err.println("Usage: java [-classpath <classpath>] " + JournalReader.class.getName()
+				+ " <journal dir> [--follow | --replay]");
+			return;
+		}
+		JournalReader reader = new JournalReader(new File(args[0]));
+		PrintWriter out = new PrintWriter(new BufferedWriter(
+			new OutputStreamWriter(System.out, StandardCharsets.UTF_8), ResultRenderer.BUFFER_SIZE));
+		String mode = args.length == 2 ? args[1] : "";
+		if (mode.equals("--replay")) {
+			reader.replay(out);
+		}
+		else {
+			reader.print(out, mode.equals("--follow"));
+		}
+		out.flush();
+	}
+
+	/**
+	 * Method to print every event, oldest first.
+	 *
+	 * @param out where to print to
+	 * @param follow true to keep waiting for new events instead of returning
+	 *        at the end of the journal
+	 */
+	public void print(PrintWriter out, boolean follow) throws IOException, InterruptedException {
+		int[] segments = BookingJournal.segments(_dir);
+		int segment = segments.length == 0 ? 0 : segments[0];
+		while (true) {
+			File file = BookingJournal.segmentFile(_dir, segment);
+			if (!file.exists()) {
+				if (!follow) return;
+				out.flush();
+				Thread.sleep(POLL_MS);
+				continue;
+			}
+			MappedByteBuffer map = mapReadOnly(file);
+			int offset = 0;
+			while (offset < map.capacity()) {
+				ByteBuffer record = read(map, offset);
+				if (record == null) {
+					//end of the written part, or a record still being written
+					boolean newer = BookingJournal.segmentFile(_dir, segment + 1).exists();
+					if (!follow || newer) break;
+					out.flush();
+					Thread.sleep(POLL_MS);
+					continue;
+				}
+				out.println(format(record));
+				offset += BookingJournal.RECORD_SIZE;
+			}
+			if (!follow && !BookingJournal.segmentFile(_dir, segment + 1).exists()) {
+				return;
+			}
+			segment++;
+		}
+	}
+
+	/**
+	 * Method to replay every event and print the resulting state of each
+	 * booking seen in the journal.
+	 *
+	 * @param out where to print to
+	 */
+	public void replay(PrintWriter out) throws IOException {
+		Map<Long, Booking> bookings = new TreeMap<Long, Booking>();
+		long events = 0;
+		for (int segment : BookingJournal.segments(_dir)) {
+			MappedByteBuffer map = mapReadOnly(BookingJournal.segmentFile(_dir, segment));
+			for (int offset = 0; offset < map.capacity(); offset += BookingJournal.RECORD_SIZE) {
+				ByteBuffer record = read(map, offset);
+				if (record == null) break;
+				events++;
+				long bid = record.getLong(8);
+				long sid = record.getLong(16);
+				long ssid = record.getLong(24);
+				byte type = record.get(BookingJournal.TYPE_OFFSET);
+				byte status = record.get(BookingJournal.TYPE_OFFSET + 1);
+
+				Booking booking = bookings.get(bid);
+				if (booking == null) {
+					booking = new Booking();
+					bookings.put(bid, booking);
+				}
+				if (sid != 0) booking.sid = sid;
+				if (status != BookingJournal.NO_STATUS) booking.status = status;
+				switch (type) {
+					case BookingJournal.SEAT_ASSIGNED: booking.seats.add(ssid); break;
+					case BookingJournal.SEAT_RELEASED: booking.seats.remove(Long.valueOf(ssid)); break;
+					case BookingJournal.PAYMENT_REMOVED: booking.paymentRemoved = true; break;
+					case BookingJournal.BOOKING_CLEARED: booking.cleared = true; break;
+					default: break;
+				}
+			}
+		}
+		for (Map.Entry<Long, Booking> entry : bookings.entrySet()) {
+			Booking booking = entry.getValue();
+			out.println("bid=" + entry.getKey() + " sid=" + booking.sid
+				+ " status=" + STATUSES[booking.status]
+				+ " seats=" + booking.seats
+				+ (booking.paymentRemoved ? " payment-removed" : "")
+				+ (booking.cleared ? " cleared" : ""));
+		}
+		out.println(events + " events, " + bookings.size() + " bookings");
+	}
+
+	//returns the record at offset, or null if it is unwritten or incomplete
+	private ByteBuffer read(MappedByteBuffer map, int offset) {
+		if (map.get(offset + BookingJournal.TYPE_OFFSET) == BookingJournal.NONE) {
+			return null;
+		}
+		map.position(offset);
+		map.get(_record);
+		ByteBuffer record = ByteBuffer.wrap(_record);
+		_crc.reset();
+		_crc.update(_record, 0, BookingJournal.CRC_OFFSET);
+		if (record.getInt(BookingJournal.CRC_OFFSET) != (int) _crc.getValue()) {
+			return null;
+		}
+		return record;
+	}
+
+	private static String format(ByteBuffer record) {
+		byte type = record.get(BookingJournal.TYPE_OFFSET);
+		byte status = record.get(BookingJournal.TYPE_OFFSET + 1);
+		return Instant.ofEpochMilli(record.getLong(0))
+			+ " " + (type < TYPES.length ? TYPES[type] : "UNKNOWN_" + type)
+			+ " bid=" + record.getLong(8)
+			+ " sid=" + record.getLong(16)
+			+ " ssid=" + record.getLong(24)
+			+ " aux=" + record.getLong(32)
+			+ " status=" + (status < STATUSES.length ? STATUSES[status] : String.valueOf(status));
+	}
+
+	private static MappedByteBuffer mapReadOnly(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+		} finally {
+			raf.close();
+		}
+	}
+}
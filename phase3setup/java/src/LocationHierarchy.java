@@ -0,0 +1,284 @@
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * This class is an in-memory copy of the Cities -> Cinemas -> Theaters
+ * hierarchy in compressed sparse row form.  Cities are sorted by city_id,
+ * the cinemas of city i are positions [_cinemaStart[i], _cinemaStart[i+1])
+ * of the cinema arrays and the theaters of cinema j are positions
+ * [_theaterStart[j], _theaterStart[j+1]) of the theater arrays, so walking a
+ * subtree is a scan of adjacent array slots.  Instances are immutable; a
+ * change to the tables is picked up by loading a new one.
+ *
+ */
+public class LocationHierarchy {
+	//channel the triggers in create.sql notify when a location table changes
+	public static final String CHANNEL = "location_changed";
+
+	private final int _numCities;
+	private final long[] _cityId;
+	private final String[] _cityName;
+	private final String[] _cityState;
+	private final int[] _zip;
+	private final int[] _cinemaStart;
+
+	private final int _numCinemas;
+	private final long[] _cid;
+	private final String[] _cname;
+	private final int[] _theaterStart;
+
+	private final int _numTheaters;
+	private final long[] _tid;
+	private final String[] _tname;
+
+	//city positions ordered by zip code and by lower case name
+	private final int[] _byZip;
+	private final int[] _byName;
+	//cinema positions ordered by cid
+	private final int[] _byCid;
+
+	private LocationHierarchy(int numCities, int numCinemas, int numTheaters) {
+		this._numCities = numCities;
+		this._cityId = new long[numCities];
+		this._cityName = new String[numCities];
+		this._cityState = new String[numCities];
+		this._zip = new int[numCities];
+		this._cinemaStart = new int[numCities + 1];
+		this._numCinemas = numCinemas;
+		this._cid = new long[numCinemas];
+		this._cname = new String[numCinemas];
+		this._theaterStart = new int[numCinemas + 1];
+		this._numTheaters = numTheaters;
+		this._tid = new long[numTheaters];
+		this._tname = new String[numTheaters];
+		this._byZip = new int[numCities];
+		this._byName = new int[numCities];
+		this._byCid = new int[numCinemas];
+	}
+
+	/**
+	 * Method to read the whole hierarchy, in one transaction so the three
+	 * tables are seen at the same point in time.
+	 *
+	 * @param conn the connection to read from
+	 * @return the loaded hierarchy
+	 * @throws java.sql.SQLException when failed to execute the queries
+	 */
+	public static LocationHierarchy load(Connection conn) throws SQLException {
+		boolean autoCommit = conn.getAutoCommit();
+		conn.setAutoCommit(false);
+		Statement stmt = conn.createStatement();
+		try {
+			stmt.execute("SET TRANSACTION ISOLATION LEVEL REPEATABLE READ");
+			ResultSet rs = stmt.executeQuery("SELECT (SELECT COUNT(*) FROM Cities),"
+				+ " (SELECT COUNT(*) FROM Cinemas), (SELECT COUNT(*) FROM Theaters)");
+			rs.next();
+			LocationHierarchy h = new LocationHierarchy(rs.getInt(1), rs.getInt(2), rs.getInt(3));
+
+			rs = stmt.executeQuery("SELECT city_id, city_name, city_state, zip_code FROM Cities ORDER BY city_id");
+			for (int i = 0; i < h._numCities && rs.next(); i++) {
+				h._cityId[i] = rs.getLong(1);
+				h._cityName[i] = rs.getString(2);
+				h._cityState[i] = rs.getString(3);
+				h._zip[i] = rs.getInt(4);
+			}
+
+			//cinemas come grouped by city in city order, count them into the offsets
+			rs = stmt.executeQuery("SELECT city_id, cid, cname FROM Cinemas ORDER BY city_id, cid");
+			int city = 0;
+			for (int j = 0; j < h._numCinemas && rs.next(); j++) {
+				long cityId = rs.getLong(1);
+				while (city < h._numCities && h._cityId[city] < cityId) {
+					h._cinemaStart[++city] = j;
+				}
+				h._cid[j] = rs.getLong(2);
+				h._cname[j] = rs.getString(3);
+			}
+			while (city < h._numCities) {
+				h._cinemaStart[++city] = h._numCinemas;
+			}
+
+			//theaters come grouped by cinema in the same order as the cinemas
+			rs = stmt.executeQuery("SELECT t.cid, t.tid, t.tname FROM Theaters t, Cinemas c"
+				+ " WHERE c.cid = t.cid ORDER BY c.city_id, t.cid, t.tid");
+			int cinema = 0;
+			for (int k = 0; k < h._numTheaters && rs.next(); k++) {
+				long cid = rs.getLong(1);
+				while (cinema < h._numCinemas && h._cid[cinema] != cid) {
+					h._theaterStart[++cinema] = k;
+				}
+				h._tid[k] = rs.getLong(2);
+				h._tname[k] = rs.getString(3);
+			}
+			while (cinema < h._numCinemas) {
+				h._theaterStart[++cinema] = h._numTheaters;
+			}
+			h.index();
+			return h;
+		} finally {
+			stmt.close();
+			if (autoCommit) {
+				conn.rollback();
+				conn.setAutoCommit(true);
+			}
+		}
+	}
+
+	/**
+	 * Method to find the cities matching what a user typed: a zip code, a
+	 * city name, or a city name followed by a comma and the state code.
+	 * Names are matched ignoring case.
+	 *
+	 * @param query the zip code or city name
+	 * @return the matching city positions, empty if none
+	 */
+	public int[] find(String query) {
+		query = query.trim();
+		if (query.matches("\\d+")) {
+			return query.length() > 9 ? new int[0] : citiesByZip(Integer.parseInt(query));
+		}
+		String state = null;
+		int comma = query.lastIndexOf(',');
+		if (comma >= 0) {
+			state = query.substring(comma + 1).trim();
+			query = query.substring(0, comma).trim();
+		}
+		int[] cities = citiesByName(query);
+		if (state == null) {
+			return cities;
+		}
+		int count = 0;
+		for (int city : cities) {
+			if (_cityState[city].trim().equalsIgnoreCase(state)) cities[count++] = city;
+		}
+		return Arrays.copyOf(cities, count);
+	}
+
+	/**
+	 * @param zip the zip code
+	 * @return the positions of the cities with this zip code, empty if none
+	 */
+	public int[] citiesByZip(int zip) {
+		int lo = 0, hi = _numCities;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (_zip[_byZip[mid]] < zip) lo = mid + 1; else hi = mid;
+		}
+		int end = lo;
+		while (end < _numCities && _zip[_byZip[end]] == zip) end++;
+		return Arrays.copyOfRange(_byZip, lo, end);
+	}
+
+	/**
+	 * @param name the city name, any case
+	 * @return the positions of the cities with this name, empty if none
+	 */
+	public int[] citiesByName(String name) {
+		int lo = 0, hi = _numCities;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (_cityName[_byName[mid]].compareToIgnoreCase(name) < 0) lo = mid + 1; else hi = mid;
+		}
+		int end = lo;
+		while (end < _numCities && _cityName[_byName[end]].equalsIgnoreCase(name)) end++;
+		return Arrays.copyOfRange(_byName, lo, end);
+	}
+
+	/**
+	 * @param cities city positions
+	 * @return the city_ids of the cities, sorted
+	 */
+	public long[] cityIds(int[] cities) {
+		long[] ids = new long[cities.length];
+		for (int i = 0; i < cities.length; i++) ids[i] = _cityId[cities[i]];
+		Arrays.sort(ids);
+		return ids;
+	}
+
+	public String describeCity(int city) {
+		return _cityName[city] + ", " + _cityState[city].trim() + " " + _zip[city];
+	}
+
+	public int cinemaCount(int city) {
+		return _cinemaStart[city + 1] - _cinemaStart[city];
+	}
+
+	public int theaterCount(int city) {
+		return _theaterStart[_cinemaStart[city + 1]] - _theaterStart[_cinemaStart[city]];
+	}
+
+	/**
+	 * @param cid the cinema ID
+	 * @return the cinema position, or -1 if there is no such cinema
+	 */
+	public int cinema(long cid) {
+		int lo = 0, hi = _numCinemas;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (_cid[_byCid[mid]] < cid) lo = mid + 1; else hi = mid;
+		}
+		return lo < _numCinemas && _cid[_byCid[lo]] == cid ? _byCid[lo] : -1;
+	}
+
+	public String cinemaName(int cinema) {
+		return _cname[cinema];
+	}
+
+	/**
+	 * @param cinema the cinema position
+	 * @param tid the theater ID
+	 * @return the theater's name, or null if it is not in this cinema
+	 */
+	public String theaterName(int cinema, long tid) {
+		for (int k = _theaterStart[cinema]; k < _theaterStart[cinema + 1]; k++) {
+			if (_tid[k] == tid) return _tname[k];
+		}
+		return null;
+	}
+
+	/**
+	 * Method to subscribe a connection to change notifications on CHANNEL.
+	 * Call it before load() so no change made in between is missed.
+	 *
+	 * @param conn the connection that will poll for changes
+	 * @throws java.sql.SQLException when failed to execute LISTEN
+	 */
+	public static void listen(Connection conn) throws SQLException {
+		Statement stmt = conn.createStatement();
+		try {
+			stmt.execute("LISTEN " + CHANNEL);
+		} finally {
+			stmt.close();
+		}
+	}
+
+	private void index() {
+		Integer[] order = new Integer[_numCities];
+		for (int i = 0; i < _numCities; i++) order[i] = i;
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return Integer.compare(_zip[a], _zip[b]);
+			}
+		});
+		for (int i = 0; i < _numCities; i++) _byZip[i] = order[i];
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return _cityName[a].compareToIgnoreCase(_cityName[b]);
+			}
+		});
+		for (int i = 0; i < _numCities; i++) _byName[i] = order[i];
+
+		Integer[] cinemas = new Integer[_numCinemas];
+		for (int j = 0; j < _numCinemas; j++) cinemas[j] = j;
+		Arrays.sort(cinemas, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return Long.compare(_cid[a], _cid[b]);
+			}
+		});
+		for (int j = 0; j < _numCinemas; j++) _byCid[j] = cinemas[j];
+	}
+}
@@ -0,0 +1,293 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This class checks Payments against Bookings and ShowSeats.  The bid range
+ * is split into partitions that run in parallel, each on its own connection.
+ * A partition streams the bookings, payments and per-booking seat totals of
+ * its range ordered by bid through server side cursors and merge-joins the
+ * three streams, so memory use does not grow with the table sizes.  Every
+ * partition imports the same exported snapshot, so together they see the
+ * tables at a single point in time.  Every connection runs under the
+ * timeouts of ExecutionPolicy.REPORT.
+ *
+ * Discrepancies found:
+ *   PAID_WITHOUT_PAYMENT  a Paid booking has no payment
+ *   PAYMENT_ON_CANCELLED  a Cancelled booking still has a payment
+ *   AMOUNT_MISMATCH       a payment's amount is not the sum of the prices
+ *                         of the booking's show seats
+ *
+ */
+public class PaymentReconciler {
+	public static final String PAID_WITHOUT_PAYMENT = "PAID_WITHOUT_PAYMENT";
+	public static final String PAYMENT_ON_CANCELLED = "PAYMENT_ON_CANCELLED";
+	public static final String AMOUNT_MISMATCH = "AMOUNT_MISMATCH";
+
+	private static final int FETCH_SIZE = 10000;
+	//amounts and prices are REAL, differences below a cent are rounding
+	private static final double TOLERANCE = 0.005;
+	//Bookings.status values the checks look for
+	private static final String PAID = "Paid";
+	private static final String CANCELLED = "Cancelled";
+
+	private static final String SELECT_BOOKINGS =
+		"SELECT bid, status FROM Bookings WHERE bid >= ? AND bid < ? ORDER BY bid";
+	private static final String SELECT_PAYMENTS =
+		"SELECT bid, pid, amount FROM Payments WHERE bid >= ? AND bid < ? ORDER BY bid";
+	//a range scan of showseats_bid_idx, so partitions do not each read all of ShowSeats
+	private static final String SELECT_SEAT_TOTALS =
+		"SELECT bid, SUM(price), COUNT(*) FROM ShowSeats WHERE bid >= ? AND bid < ? GROUP BY bid ORDER BY bid";
+
+	/**
+	 * The outcome of a reconciliation.
+	 */
+	public static class Report {
+		public long bookings = 0;
+		public long payments = 0;
+		public long paidWithoutPayment = 0;
+		public long paymentOnCancelled = 0;
+		public long amountMismatch = 0;
+		public int partitions = 0;
+		public long nanos = 0;
+
+		public long discrepancies() {
+			return paidWithoutPayment + paymentOnCancelled + amountMismatch;
+		}
+
+		void add(Report other) {
+			bookings += other.bookings;
+			payments += other.payments;
+			paidWithoutPayment += other.paidWithoutPayment;
+			paymentOnCancelled += other.paymentOnCancelled;
+			amountMismatch += other.amountMismatch;
+		}
+	}
+
+	private final String _url;
+	private final String _user;
+	private final String _passwd;
+	private final int _partitions;
+
+	/**
+	 * @param url the JDBC URL of the database, every partition opens its own
+	 *        connection to it
+	 * @param user the database user
+	 * @param passwd the database password
+	 * @param partitions how many bid ranges to check in parallel
+	 */
+	public PaymentReconciler(String url, String user, String passwd, int partitions) {
+		this._url = url;
+		this._user = user;
+		this._passwd = passwd;
+		this._partitions = Math.max(1, partitions);
+	}
+
+	/**
+	 * Method to reconcile every booking and write one CSV line per
+	 * discrepancy, ordered by bid.
+	 *
+	 * @param reportFile where the discrepancies are written to
+	 * @return the counts of the run
+	 * @throws java.sql.SQLException when a partition failed to query
+	 * @throws java.io.IOException when the report could not be written
+	 */
+	public Report reconcile(File reportFile) throws SQLException, IOException {
+		long start = System.nanoTime();
+		Report total = new Report();
+		Connection coordinator = DriverManager.getConnection(_url, _user, _passwd);
+		ExecutorService pool = null;
+		List<File> parts = new ArrayList<File>();
+		try {
+			//holds the snapshot open until every partition has imported it
+			coordinator.setAutoCommit(false);
+			Statement stmt = coordinator.createStatement();
+			stmt.execute("SET TRANSACTION ISOLATION LEVEL REPEATABLE READ, READ ONLY");
+			setTimeouts(stmt);
+			ResultSet rs = stmt.executeQuery("SELECT pg_export_snapshot(), MIN(bid), MAX(bid) FROM Bookings");
+			rs.next();
+			String snapshot = rs.getString(1);
+			long lo = rs.getLong(2);
+			long hi = rs.getLong(3) + 1;
+			stmt.close();
+
+			int partitions = (int) Math.max(1, Math.min(_partitions, hi - lo));
+			long step = (hi - lo + partitions - 1) / partitions;
+			pool = Executors.newFixedThreadPool(partitions);
+			List<Future<Report>> results = new ArrayList<Future<Report>>();
+			for (int p = 0; p < partitions; p++) {
+				File part = new File(reportFile.getPath() + ".part" + p);
+				parts.add(part);
+				long from = lo + p * step;
+				long to = p == partitions - 1 ? hi : Math.min(hi, from + step);
+				results.add(pool.submit(new Partition(snapshot, from, to, part)));
+			}
+			for (Future<Report> result : results) {
+				total.add(result.get());
+			}
+			total.partitions = partitions;
+			concatenate(parts, reportFile);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Reconciliation interrupted", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof SQLException) throw (SQLException) cause;
+			if (cause instanceof IOException) throw (IOException) cause;
+			throw new SQLException("Reconciliation failed: " + cause, cause);
+		} finally {
+			if (pool != null) {
+				pool.shutdownNow();
+			}
+			for (File part : parts) {
+				part.delete();
+			}
+			coordinator.rollback();
+			coordinator.close();
+			total.nanos = System.nanoTime() - start;
+		}
+		return total;
+	}
+
+	//the checks of one bid range, written to its own part file
+	private class Partition implements Callable<Report> {
+		private final String _snapshot;
+		private final long _from;
+		private final long _to;
+		private final File _part;
+
+		Partition(String snapshot, long from, long to, File part) {
+			this._snapshot = snapshot;
+			this._from = from;
+			this._to = to;
+			this._part = part;
+		}
+
+		public Report call() throws SQLException, IOException {
+			Report report = new Report();
+			Connection conn = DriverManager.getConnection(_url, _user, _passwd);
+			Writer out = new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(_part), StandardCharsets.UTF_8), ResultRenderer.BUFFER_SIZE);
+			try {
+				conn.setAutoCommit(false);
+				Statement setup = conn.createStatement();
+				setup.execute("SET TRANSACTION ISOLATION LEVEL REPEATABLE READ, READ ONLY");
+				setup.execute("SET TRANSACTION SNAPSHOT '" + _snapshot + "'");
+				setTimeouts(setup);
+				setup.close();
+
+				ResultSet bookings = open(conn, SELECT_BOOKINGS);
+				ResultSet payments = open(conn, SELECT_PAYMENTS);
+				ResultSet seats = open(conn, SELECT_SEAT_TOTALS);
+				boolean hasPayment = payments.next();
+				boolean hasSeats = seats.next();
+				//every payment and show seat references a booking, so bookings drive the merge
+				while (bookings.next()) {
+					report.bookings++;
+					long bid = bookings.getLong(1);
+					String status = bookings.getString(2).trim();
+
+					while (hasPayment && payments.getLong(1) < bid) hasPayment = payments.next();
+					while (hasSeats && seats.getLong(1) < bid) hasSeats = seats.next();
+					boolean paid = hasPayment && payments.getLong(1) == bid;
+					double seatTotal = 0;
+					long seatCount = 0;
+					if (hasSeats && seats.getLong(1) == bid) {
+						seatTotal = seats.getDouble(2);
+						seatCount = seats.getLong(3);
+					}
+
+					if (!paid) {
+						if (PAID.equals(status)) {
+							report.paidWithoutPayment++;
+							write(out, bid, PAID_WITHOUT_PAYMENT, bookings.getString(2), null, null, seatTotal, seatCount);
+						}
+						continue;
+					}
+					report.payments++;
+					String pid = payments.getString(2);
+					double amount = payments.getDouble(3);
+					if (CANCELLED.equals(status)) {
+						report.paymentOnCancelled++;
+						write(out, bid, PAYMENT_ON_CANCELLED, bookings.getString(2), pid, amount, seatTotal, seatCount);
+					}
+					if (Math.abs(amount - seatTotal) > TOLERANCE) {
+						report.amountMismatch++;
+						write(out, bid, AMOUNT_MISMATCH, bookings.getString(2), pid, amount, seatTotal, seatCount);
+					}
+				}
+				return report;
+			} finally {
+				out.close();
+				conn.rollback();
+				conn.close();
+			}
+		}
+
+		//statements stay open until the connection closes, their cursors are read side by side
+		private ResultSet open(Connection conn, String sql) throws SQLException {
+			PreparedStatement stmt = conn.prepareStatement(sql);
+			stmt.setFetchSize(FETCH_SIZE);
+			stmt.setLong(1, _from);
+			stmt.setLong(2, _to);
+			return stmt.executeQuery();
+		}
+	}
+
+	//SET LOCAL, the settings end with the read only transaction
+	private static void setTimeouts(Statement stmt) throws SQLException {
+		stmt.execute("SET LOCAL statement_timeout = " + ExecutionPolicy.REPORT.statementTimeoutMs
+			+ "; SET LOCAL lock_timeout = " + ExecutionPolicy.REPORT.lockTimeoutMs);
+	}
+
+	private static void write(Writer out, long bid, String problem, String status, String pid, Double amount,
+			double seatTotal, long seatCount) throws IOException {
+		out.write(bid + "," + problem + "," + status.trim() + "," + (pid == null ? "" : pid) + ","
+			+ (amount == null ? "" : String.format("%.2f", amount)) + ","
+			+ String.format("%.2f", seatTotal) + "," + seatCount + "\n");
+	}
+
+	//partitions cover ascending bid ranges, so appending them in order keeps the report sorted
+	private static void concatenate(List<File> parts, File reportFile) throws IOException {
+		Writer out = new BufferedWriter(new OutputStreamWriter(
+			new FileOutputStream(reportFile), StandardCharsets.UTF_8), ResultRenderer.BUFFER_SIZE);
+		try {
+			out.write("bid,problem,status,pid,amount,seat_total,seats\n");
+			char[] buffer = new char[ResultRenderer.BUFFER_SIZE];
+			for (File part : parts) {
+				BufferedReader in = new BufferedReader(new InputStreamReader(
+					new FileInputStream(part), StandardCharsets.UTF_8));
+				try {
+					int n;
+					while ((n = in.read(buffer)) > 0) {
+						out.write(buffer, 0, n);
+					}
+				} finally {
+					in.close();
+				}
+			}
+		} finally {
+			out.close();
+		}
+	}
+}
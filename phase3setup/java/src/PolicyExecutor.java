@@ -0,0 +1,165 @@
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * This class runs statements under an ExecutionPolicy.  Before a statement
+ * the session's statement_timeout and lock_timeout are set to the policy's,
+ * so the server cancels it when it runs too long or waits too long on a
+ * lock.  Serialization failures and deadlocks are retried with backoff, and
+ * every call passes through a shared circuit breaker.
+ *
+ * Only calls made through execute get retries and breaker accounting, and
+ * cancel() only reaches statements run on the Statement handed to the work.
+ * Work that drives the connection itself, such as the id block allocation,
+ * seat map loads, the ShowStats summaries, bulk imports and reconciliation,
+ * only gets the timeouts apply() left on the session.
+ *
+ */
+public class PolicyExecutor {
+	private static final String QUERY_CANCELED = "57014";
+
+	/**
+	 * The statements of one call, run on a fresh Statement that is closed
+	 * afterwards.
+	 */
+	public interface Work<T> {
+		T run(Statement stmt) throws SQLException;
+	}
+
+	private final CircuitBreaker _breaker = new CircuitBreaker();
+	//{statement_timeout, lock_timeout} last set on each connection's session
+	private final Map<Connection, int[]> _session = new IdentityHashMap<Connection, int[]>();
+	//the statement in flight, for cancel()
+	private volatile Statement _running = null;
+	//set by cancel(), so the cancel it causes is not taken for overload
+	private volatile boolean _cancelled = false;
+
+	/**
+	 * Method to run a call under a policy.  Retries only happen in
+	 * autocommit mode: inside a transaction the error has aborted the
+	 * whole transaction, which is for the caller to redo.
+	 *
+	 * @param conn the connection to run on
+	 * @param policy the policy of the operation
+	 * @param work the statements to run
+	 * @return what the work returned
+	 * @throws java.sql.SQLException when the call failed and may not or no
+	 *         longer be retried, or when the circuit breaker is open
+	 */
+	public <T> T execute(Connection conn, ExecutionPolicy policy, Work<T> work) throws SQLException {
+		_breaker.acquire();
+		int attempt = 0;
+		while (true) {
+			long start = System.currentTimeMillis();
+			Statement stmt = null;
+			try {
+				stmt = conn.createStatement();
+				apply(conn, stmt, policy);
+				_cancelled = false;
+				_running = stmt;
+				T result = work.run(stmt);
+				if (policy.slowCallMs > 0 && System.currentTimeMillis() - start > policy.slowCallMs) {
+					_breaker.onFailure();
+				}
+				else {
+					_breaker.onSuccess();
+				}
+				return result;
+			} catch (SQLException e) {
+				if (ExecutionPolicy.isRetryable(e) && attempt < policy.maxRetries && conn.getAutoCommit()) {
+					sleep(policy.backoff(attempt++));
+					continue;
+				}
+				if (_cancelled && QUERY_CANCELED.equals(e.getSQLState())) {
+					//the user gave up on it, says nothing about the database
+					_breaker.onIgnored();
+				}
+				else if (CircuitBreaker.isOverload(e)) {
+					_breaker.onFailure();
+				}
+				else {
+					//the database answered, the statement itself was at fault
+					_breaker.onSuccess();
+				}
+				throw e;
+			} catch (RuntimeException e) {
+				_breaker.onSuccess();
+				throw e;
+			} finally {
+				_running = null;
+				if (stmt != null) {
+					stmt.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Method to cancel the statement in flight, if any.  Safe to call from
+	 * another thread; the canceled call fails with SQLSTATE 57014.
+	 */
+	public void cancel() {
+		Statement stmt = _running;
+		if (stmt != null) {
+			_cancelled = true;
+			try {
+				stmt.cancel();
+			} catch (SQLException e) {
+				// ignored, the statement has finished.
+			}
+		}
+	}
+
+	public CircuitBreaker breaker() {
+		return _breaker;
+	}
+
+	/**
+	 * Method to set a policy's timeouts on a connection's session ahead of
+	 * time, so they also cover statements that do not go through execute.
+	 *
+	 * @param conn the connection
+	 * @param policy the policy
+	 * @throws java.sql.SQLException when the timeouts could not be set
+	 */
+	public void apply(Connection conn, ExecutionPolicy policy) throws SQLException {
+		Statement stmt = conn.createStatement();
+		try {
+			apply(conn, stmt, policy);
+		} finally {
+			stmt.close();
+		}
+	}
+
+	//sets the policy's timeouts on the session, skipping the round trip when already set
+	private void apply(Connection conn, Statement stmt, ExecutionPolicy policy) throws SQLException {
+		if (!conn.getAutoCommit()) {
+			//a SET in an open transaction is undone by its rollback, SET LOCAL
+			//lasts exactly as long as the transaction and leaves the session alone
+			stmt.execute("SET LOCAL statement_timeout = " + policy.statementTimeoutMs
+				+ "; SET LOCAL lock_timeout = " + policy.lockTimeoutMs);
+			return;
+		}
+		synchronized (_session) {
+			int[] current = _session.get(conn);
+			if (current != null && current[0] == policy.statementTimeoutMs && current[1] == policy.lockTimeoutMs) {
+				return;
+			}
+			stmt.execute("SET statement_timeout = " + policy.statementTimeoutMs
+				+ "; SET lock_timeout = " + policy.lockTimeoutMs);
+			_session.put(conn, new int[] {policy.statementTimeoutMs, policy.lockTimeoutMs});
+		}
+	}
+
+	private static void sleep(long ms) throws SQLException {
+		try {
+			Thread.sleep(ms);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting to retry", "57014", e);
+		}
+	}
+}
@@ -0,0 +1,280 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This class renders a query result as an aligned table, CSV or JSON Lines.
+ * Rows are streamed from the cursor into a single buffered writer so the
+ * cost of printing is one write per buffer instead of one per cell.
+ *
+ */
+public class ResultRenderer {
+	public enum Format { TABLE, CSV, JSONL }
+
+	//size of the character buffer in front of the output stream
+	public static final int BUFFER_SIZE = 1 << 16;
+	//rows buffered to compute column widths for a table when not paging
+	private static final int TABLE_CHUNK = 500;
+
+	private final Writer _out;
+	private final Format _format;
+	private final int _pageSize;
+	private final BufferedReader _pager;
+
+	/**
+	 * @param out the writer to render to, should already be buffered
+	 * @param format the output format
+	 * @param pageSize rows per page, or 0 to write everything at once
+	 * @param pager where to read the "next page" answer from, only used
+	 *        when pageSize is positive
+	 */
+	public ResultRenderer(Writer out, Format format, int pageSize, BufferedReader pager) {
+		this._out = out;
+		this._format = format;
+		this._pageSize = pager == null ? 0 : pageSize;
+		this._pager = pager;
+	}
+
+	/**
+	 * Method to open a renderer writing to a file.  The caller must close()
+	 * it when done.
+	 *
+	 * @param path the file to (over)write
+	 * @param format the output format
+	 * @return the renderer
+	 * @throws java.io.IOException when the file cannot be opened
+	 */
+	public static ResultRenderer toFile(String path, Format format) throws IOException {
+		Writer out = new BufferedWriter(new OutputStreamWriter(
+			new FileOutputStream(path), StandardCharsets.UTF_8), BUFFER_SIZE);
+		return new ResultRenderer(out, format, 0, null);
+	}
+
+	/**
+	 * Method to write every row of the result set.  The header is only
+	 * written once the first row arrives, as executeQueryAndPrintResult
+	 * always did.
+	 *
+	 * @param rs the result set to consume
+	 * @return the number of rows written
+	 * @throws java.sql.SQLException when reading the result fails
+	 * @throws java.io.IOException when writing fails
+	 */
+	public long render(ResultSet rs) throws SQLException, IOException {
+		ResultSetMetaData rsmd = rs.getMetaData();
+		int numCol = rsmd.getColumnCount();
+		String[] names = new String[numCol];
+		boolean[] quoted = new boolean[numCol];
+		for (int i = 0; i < numCol; i++) {
+			names[i] = rsmd.getColumnName(i + 1);
+			quoted[i] = !isNumeric(rsmd.getColumnType(i + 1));
+		}
+
+		long rowCount = 0;
+		if (_format == Format.TABLE) {
+			rowCount = renderTable(rs, names);
+		}
+		else {
+			String[] row = new String[numCol];
+			while (rs.next()) {
+				if (rowCount == 0 && _format == Format.CSV) {
+					writeCsv(names);
+				}
+				for (int i = 0; i < numCol; i++) {
+					row[i] = rs.getString(i + 1);
+				}
+				if (_format == Format.CSV) {
+					writeCsv(row);
+				}
+				else {
+					writeJson(names, row, quoted);
+				}
+				++rowCount;
+				if (_pageSize > 0 && rowCount % _pageSize == 0 && !nextPage()) {
+					break;
+				}
+			}//end while
+		}
+		_out.flush();
+		return rowCount;
+	}
+
+	/**
+	 * Method to flush and close the underlying writer.
+	 *
+	 * @throws java.io.IOException when closing fails
+	 */
+	public void close() throws IOException {
+		_out.close();
+	}
+
+	private long renderTable(ResultSet rs, String[] names) throws SQLException, IOException {
+		int numCol = names.length;
+		int chunk = _pageSize > 0 ? _pageSize : TABLE_CHUNK;
+		int[] widths = new int[numCol];
+		for (int i = 0; i < numCol; i++) {
+			widths[i] = names[i].length();
+		}
+		List<String[]> rows = new ArrayList<String[]>(chunk);
+		//widths the last header was written with, null before the first
+		int[] headerWidths = null;
+		long rowCount = 0;
+		boolean more = rs.next();
+		while (more) {
+			rows.clear();
+			do {
+				String[] row = new String[numCol];
+				for (int i = 0; i < numCol; i++) {
+					row[i] = String.valueOf(rs.getString(i + 1));
+					widths[i] = Math.max(widths[i], row[i].length());
+				}
+				rows.add(row);
+				more = rs.next();
+			} while (more && rows.size() < chunk);
+
+			//without paging the header is repeated only when a chunk widened a column,
+			//so every row lines up with the header above it
+			if (headerWidths == null || _pageSize > 0 || !Arrays.equals(headerWidths, widths)) {
+				if (headerWidths != null && _pageSize <= 0) {
+					_out.write('\n');
+				}
+				headerWidths = widths.clone();
+				writeTableRow(names, widths);
+				for (int i = 0; i < numCol; i++) {
+					if (i > 0) _out.write("-+-");
+					repeat('-', widths[i]);
+				}
+				_out.write('\n');
+			}
+			for (String[] row : rows) {
+				writeTableRow(row, widths);
+			}
+			rowCount += rows.size();
+			if (more && _pageSize > 0 && !nextPage()) {
+				break;
+			}
+		}//end while
+		return rowCount;
+	}
+
+	private void writeTableRow(String[] row, int[] widths) throws IOException {
+		for (int i = 0; i < row.length; i++) {
+			if (i > 0) _out.write(" | ");
+			_out.write(row[i]);
+			if (i < row.length - 1) {
+				repeat(' ', widths[i] - row[i].length());
+			}
+		}
+		_out.write('\n');
+	}
+
+	private void writeCsv(String[] row) throws IOException {
+		for (int i = 0; i < row.length; i++) {
+			if (i > 0) _out.write(',');
+			String value = row[i];
+			//NULL is an empty field, an empty string is quoted, as COPY ... CSV does
+			if (value == null) {
+				continue;
+			}
+			if (value.isEmpty() || value.indexOf(',') >= 0 || value.indexOf('"') >= 0
+					|| value.indexOf('\n') >= 0 || value.indexOf('\r') >= 0) {
+				_out.write('"');
+				_out.write(value.replace("\"", "\"\""));
+				_out.write('"');
+			}
+			else {
+				_out.write(value);
+			}
+		}
+		_out.write('\n');
+	}
+
+	private void writeJson(String[] names, String[] row, boolean[] quoted) throws IOException {
+		_out.write('{');
+		for (int i = 0; i < row.length; i++) {
+			if (i > 0) _out.write(',');
+			writeJsonString(names[i]);
+			_out.write(':');
+			if (row[i] == null) {
+				_out.write("null");
+			}
+			else if (quoted[i] || !isJsonNumber(row[i])) {
+				writeJsonString(row[i]);
+			}
+			else {
+				_out.write(row[i]);
+			}
+		}
+		_out.write("}\n");
+	}
+
+	private void writeJsonString(String value) throws IOException {
+		_out.write('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+				case '"': _out.write("\\\""); break;
+				case '\\': _out.write("\\\\"); break;
+				case '\n': _out.write("\\n"); break;
+				case '\r': _out.write("\\r"); break;
+				case '\t': _out.write("\\t"); break;
+				default:
+					if (c < 0x20) {
+						_out.write(String.format("\\u%04x", (int) c));
+					}
+					else {
+						_out.write(c);
+					}
+			}
+		}
+		_out.write('"');
+	}
+
+	private void repeat(char c, int count) throws IOException {
+		for (int i = 0; i < count; i++) {
+			_out.write(c);
+		}
+	}
+
+	//flushes the current page and asks whether to continue, true to go on
+	private boolean nextPage() throws IOException {
+		_out.write("-- More (press Enter to continue, q to stop) --\n");
+		_out.flush();
+		String answer = _pager.readLine();
+		return answer != null && !answer.trim().equalsIgnoreCase("q");
+	}
+
+	//NaN and Infinity are valid REAL values but not valid JSON numbers
+	private static boolean isJsonNumber(String value) {
+		char last = value.charAt(value.length() - 1);
+		return last >= '0' && last <= '9';
+	}
+
+	private static boolean isNumeric(int type) {
+		switch (type) {
+			case Types.BIGINT:
+			case Types.INTEGER:
+			case Types.SMALLINT:
+			case Types.TINYINT:
+			case Types.NUMERIC:
+			case Types.DECIMAL:
+			case Types.REAL:
+			case Types.FLOAT:
+			case Types.DOUBLE:
+				return true;
+			default:
+				return false;
+		}
+	}
+}
@@ -0,0 +1,245 @@
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class is the seat map of one show: every seat of the theater with
+ * its number, type, price and whether it is taken.  Seats are kept in seat
+ * number order in primitive arrays; taken seats are a bitset and each seat
+ * points into a small table of (price, seat type) tiers, so a map of a few
+ * hundred seats takes a few kilobytes.  Instances are immutable, Cache keeps
+ * recently loaded maps for a short time.
+ *
+ */
+public class SeatMap {
+	//seats printed per line by print()
+	private static final int SEATS_PER_LINE = 10;
+
+	private static final String SELECT_SEATS =
+		"SELECT ss.ssid, cs.sno, cs.stype, ss.price, ss.bid IS NOT NULL"
+		+ " FROM ShowSeats ss, CinemaSeats cs"
+		+ " WHERE cs.csid = ss.csid AND ss.sid = ?"
+		+ " ORDER BY cs.sno, ss.ssid";
+
+	private final long _sid;
+	private final int _size;
+	private final long[] _ssid;
+	private final int[] _sno;
+	private final byte[] _tier;
+	private final long[] _taken;
+	private final float[] _tierPrice;
+	private final String[] _tierType;
+	private final long _loadedAt = System.currentTimeMillis();
+
+	private SeatMap(long sid, int size, long[] ssid, int[] sno, byte[] tier, long[] taken, float[] tierPrice, String[] tierType) {
+		this._sid = sid;
+		this._size = size;
+		this._ssid = ssid;
+		this._sno = sno;
+		this._tier = tier;
+		this._taken = taken;
+		this._tierPrice = tierPrice;
+		this._tierType = tierType;
+	}
+
+	/**
+	 * Method to read the seat map of a show with a single query.
+	 *
+	 * @param conn the connection to read from
+	 * @param sid the show ID
+	 * @return the seat map, empty if the show has no seats
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public static SeatMap load(Connection conn, long sid) throws SQLException {
+		PreparedStatement stmt = conn.prepareStatement(SELECT_SEATS);
+		try {
+			stmt.setLong(1, sid);
+			ResultSet rs = stmt.executeQuery();
+			int size = 0;
+			long[] ssid = new long[64];
+			int[] sno = new int[64];
+			byte[] tier = new byte[64];
+			long[] taken = new long[1];
+			List<Float> prices = new ArrayList<Float>();
+			List<String> types = new ArrayList<String>();
+			while (rs.next()) {
+				if (size == ssid.length) {
+					ssid = Arrays.copyOf(ssid, size * 2);
+					sno = Arrays.copyOf(sno, size * 2);
+					tier = Arrays.copyOf(tier, size * 2);
+				}
+				if ((size >>> 6) == taken.length) {
+					taken = Arrays.copyOf(taken, taken.length * 2);
+				}
+				ssid[size] = rs.getLong(1);
+				sno[size] = rs.getInt(2);
+				String type = rs.getString(3).trim();
+				float price = rs.getFloat(4);
+				if (rs.getBoolean(5)) {
+					taken[size >>> 6] |= 1L << size;
+				}
+				//a show has a handful of distinct prices, a linear search is enough
+				int t = 0;
+				while (t < prices.size() && !(prices.get(t) == price && types.get(t).equals(type))) t++;
+				if (t == prices.size()) {
+					if (t > Byte.MAX_VALUE) {
+						throw new SQLException("Show " + sid + " has more than " + (Byte.MAX_VALUE + 1) + " price tiers");
+					}
+					prices.add(price);
+					types.add(type);
+				}
+				tier[size] = (byte) t;
+				size++;
+			}
+			float[] tierPrice = new float[prices.size()];
+			String[] tierType = new String[types.size()];
+			for (int t = 0; t < tierPrice.length; t++) {
+				tierPrice[t] = prices.get(t);
+				tierType[t] = types.get(t);
+			}
+			return new SeatMap(sid, size, ssid, sno, tier, taken, tierPrice, tierType);
+		} finally {
+			stmt.close();
+		}
+	}
+
+	public long sid() {
+		return _sid;
+	}
+
+	public int size() {
+		return _size;
+	}
+
+	public long ssid(int seat) {
+		return _ssid[seat];
+	}
+
+	public int seatNumber(int seat) {
+		return _sno[seat];
+	}
+
+	public boolean isTaken(int seat) {
+		return (_taken[seat >>> 6] & (1L << seat)) != 0;
+	}
+
+	public float price(int seat) {
+		return _tierPrice[_tier[seat]];
+	}
+
+	public String seatType(int seat) {
+		return _tierType[_tier[seat]];
+	}
+
+	public int freeSeats() {
+		int taken = 0;
+		for (long word : _taken) taken += Long.bitCount(word);
+		return _size - taken;
+	}
+
+	/**
+	 * Method to print the map, SEATS_PER_LINE seats per line.  A free seat
+	 * shows its number and tier letter, a taken seat shows as "--"; the
+	 * price and seat type of each tier are listed below the map.
+	 *
+	 * @param out where to print to
+	 */
+	public void print(PrintWriter out) {
+		int width = String.valueOf(_size == 0 ? 0 : _sno[_size - 1]).length() + 1;
+		StringBuilder line = new StringBuilder();
+		for (int seat = 0; seat < _size; seat++) {
+			String cell = isTaken(seat) ? "--" : _sno[seat] + tierName(_tier[seat]);
+			for (int pad = cell.length(); pad < width; pad++) line.append(' ');
+			line.append(cell).append(' ');
+			if ((seat + 1) % SEATS_PER_LINE == 0 || seat == _size - 1) {
+				out.println(line);
+				line.setLength(0);
+			}
+		}
+		for (int t = 0; t < _tierPrice.length; t++) {
+			out.println(tierName(t) + ": " + _tierType[t] + String.format(", $%.2f", _tierPrice[t]));
+		}
+		out.println(freeSeats() + " of " + _size + " seats free");
+	}
+
+	//A, B, ..., Z, then AA, AB, ...
+	private static String tierName(int tier) {
+		String name = String.valueOf((char) ('A' + tier % 26));
+		return tier < 26 ? name : tierName(tier / 26 - 1) + name;
+	}
+
+	/**
+	 * Recently loaded seat maps, each served for at most ttlMs after it was
+	 * loaded.  Seat changes made through this client drop the map of the
+	 * show right away, changes made by other clients show after the TTL.
+	 */
+	public static class Cache {
+		private final long _ttlMs;
+		private final Map<Long, SeatMap> _maps;
+		//bumped by invalidate, a load that raced an invalidate is not cached
+		private long _generation = 0;
+
+		/**
+		 * @param ttlMs how long a loaded map is served
+		 * @param maxShows how many shows are kept, least recently used are
+		 *        dropped first
+		 */
+		public Cache(long ttlMs, final int maxShows) {
+			this._ttlMs = ttlMs;
+			this._maps = new LinkedHashMap<Long, SeatMap>(16, 0.75f, true) {
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<Long, SeatMap> eldest) {
+					return size() > maxShows;
+				}
+			};
+		}
+
+		/**
+		 * Method to return the seat map of a show, loading it if it is not
+		 * cached or has expired.
+		 *
+		 * @param conn the connection to load from
+		 * @param sid the show ID
+		 * @return the seat map
+		 * @throws java.sql.SQLException when failed to load the map
+		 */
+		public SeatMap get(Connection conn, long sid) throws SQLException {
+			long generation;
+			synchronized (_maps) {
+				SeatMap map = _maps.get(sid);
+				if (map != null && System.currentTimeMillis() - map._loadedAt < _ttlMs) {
+					return map;
+				}
+				generation = _generation;
+			}
+			SeatMap map = SeatMap.load(conn, sid);
+			synchronized (_maps) {
+				//it may predate a change invalidated while it loaded
+				if (_generation == generation) {
+					_maps.put(sid, map);
+				}
+			}
+			return map;
+		}
+
+		/**
+		 * Method to drop the map of a show whose seats changed.  A load
+		 * running at the same time is returned to its caller but not cached.
+		 *
+		 * @param sid the show ID
+		 */
+		public void invalidate(long sid) {
+			synchronized (_maps) {
+				_maps.remove(sid);
+				_generation++;
+			}
+		}
+	}
+}
@@ -0,0 +1,117 @@
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * This class maintains the ShowStats summary table (revenue and seats per
+ * show, see create.sql) and holds the report queries that read it.
+ * Triggers on ShowSeats, Payments, Bookings and Plays append changes to
+ * ShowStatsDelta; applyDeltas() folds them into ShowStats in one statement,
+ * so reports never rescan the fact tables.
+ *
+ * A show is credited to a single cinema.  Plays allows several theaters per
+ * show, but the triggers plays_one_cinema and theaters_one_cinema in
+ * create.sql reject any that would put one show in two cinemas, so that
+ * cinema is the only one the show plays at.
+ *
+ * Seats and payments of Cancelled bookings are not counted: a booking
+ * entering Cancelled takes them out of its show's summary, one leaving it
+ * puts them back.
+ *
+ */
+public class ShowStats {
+	//deletes every visible delta and adds it, summed per show, onto ShowStats
+	private static final String APPLY_DELTAS =
+		"WITH d AS (DELETE FROM ShowStatsDelta RETURNING sid, revenue, seats_sold, seats_total),"
+		+ " g AS (SELECT sid, SUM(revenue) AS revenue, SUM(seats_sold) AS seats_sold,"
+		+ " SUM(seats_total) AS seats_total FROM d GROUP BY sid)"
+		+ " INSERT INTO ShowStats(sid, sdate, cid, mvid, revenue, seats_sold, seats_total)"
+		+ " SELECT g.sid, s.sdate,"
+		+ " (SELECT MIN(t.cid) FROM Plays p, Theaters t WHERE p.sid = g.sid AND t.tid = p.tid),"
+		+ " s.mvid, g.revenue, g.seats_sold, g.seats_total"
+		+ " FROM g, Shows s WHERE s.sid = g.sid"
+		+ " ON CONFLICT (sid) DO UPDATE SET cid = EXCLUDED.cid,"
+		+ " revenue = ShowStats.revenue + EXCLUDED.revenue,"
+		+ " seats_sold = ShowStats.seats_sold + EXCLUDED.seats_sold,"
+		+ " seats_total = ShowStats.seats_total + EXCLUDED.seats_total";
+
+	private static final String REBUILD =
+		"INSERT INTO ShowStats(sid, sdate, cid, mvid, revenue, seats_sold, seats_total)"
+		+ " SELECT s.sid, s.sdate,"
+		+ " (SELECT MIN(t.cid) FROM Plays p, Theaters t WHERE p.sid = s.sid AND t.tid = p.tid),"
+		+ " s.mvid,"
+		+ " COALESCE((SELECT SUM(pm.amount) FROM Payments pm, Bookings b"
+		+ " WHERE b.sid = s.sid AND pm.bid = b.bid AND b.status <> 'Cancelled'), 0),"
+		+ " (SELECT COUNT(*) FROM ShowSeats ss, Bookings b"
+		+ " WHERE ss.sid = s.sid AND b.bid = ss.bid AND b.status <> 'Cancelled'),"
+		+ " (SELECT COUNT(*) FROM ShowSeats ss WHERE ss.sid = s.sid)"
+		+ " FROM Shows s";
+
+	private static final String OCCUPANCY =
+		" ROUND(100.0 * SUM(st.seats_sold) / NULLIF(SUM(st.seats_total), 0), 1) AS occupancy_pct";
+
+	public static final String REPORT_BY_MOVIE =
+		"SELECT m.title, COUNT(*) AS shows, SUM(st.revenue) AS revenue,"
+		+ " SUM(st.seats_sold) AS seats_sold, SUM(st.seats_total) AS seats_total," + OCCUPANCY
+		+ " FROM ShowStats st, Movies m WHERE m.mvid = st.mvid"
+		+ " GROUP BY m.mvid, m.title ORDER BY revenue DESC, m.title";
+
+	public static final String REPORT_BY_CINEMA =
+		"SELECT c.cname, COUNT(*) AS shows, SUM(st.revenue) AS revenue,"
+		+ " SUM(st.seats_sold) AS seats_sold, SUM(st.seats_total) AS seats_total," + OCCUPANCY
+		+ " FROM ShowStats st, Cinemas c WHERE c.cid = st.cid"
+		+ " GROUP BY c.cid, c.cname ORDER BY revenue DESC, c.cname";
+
+	public static final String REPORT_BY_DAY =
+		"SELECT st.sdate, COUNT(*) AS shows, SUM(st.revenue) AS revenue,"
+		+ " SUM(st.seats_sold) AS seats_sold, SUM(st.seats_total) AS seats_total," + OCCUPANCY
+		+ " FROM ShowStats st GROUP BY st.sdate ORDER BY st.sdate";
+
+	private ShowStats() {
+	}
+
+	/**
+	 * Method to fold every pending delta into ShowStats.  The deltas are
+	 * deleted and applied in the same statement, so each one is counted
+	 * exactly once even with concurrent writers.
+	 *
+	 * @param conn the connection to use
+	 * @return the number of shows whose summary changed
+	 * @throws java.sql.SQLException when failed to execute the update
+	 */
+	public static int applyDeltas(Connection conn) throws SQLException {
+		Statement stmt = conn.createStatement();
+		int updated = stmt.executeUpdate(APPLY_DELTAS);
+		stmt.close();
+		return updated;
+	}
+
+	/**
+	 * Method to recompute ShowStats from the fact tables, in case it was
+	 * loaded without the triggers in place.
+	 *
+	 * @param conn the connection to use
+	 * @return the number of shows summarised
+	 * @throws java.sql.SQLException when failed to execute the update
+	 */
+	public static int rebuild(Connection conn) throws SQLException {
+		boolean autoCommit = conn.getAutoCommit();
+		conn.setAutoCommit(false);
+		Statement stmt = conn.createStatement();
+		try {
+			//blocks the triggers so no delta is lost between the two steps
+			stmt.executeUpdate("LOCK TABLE ShowStatsDelta IN EXCLUSIVE MODE");
+			stmt.executeUpdate("DELETE FROM ShowStatsDelta");
+			stmt.executeUpdate("DELETE FROM ShowStats");
+			int rows = stmt.executeUpdate(REBUILD);
+			conn.commit();
+			return rows;
+		} catch (SQLException e) {
+			conn.rollback();
+			throw e;
+		} finally {
+			stmt.close();
+			conn.setAutoCommit(autoCommit);
+		}
+	}
+}
@@ -0,0 +1,315 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+
+/**
+ * This class keeps an in-memory index of every (show, theater) pair joined
+ * through Shows, Plays, Theaters and Cinemas.  Rows are kept sorted by the
+ * show's start (sdate, sttime) in parallel primitive arrays so a time window
+ * is answered with two binary searches and a short scan.  The triggers in
+ * create.sql send the sid of every changed show or play on CHANNEL, so
+ * changes made by other clients can be refreshed show by show.
+ *
+ */
+public class ShowtimeIndex {
+	//channel the triggers in create.sql notify with the sid of a changed show
+	public static final String CHANNEL = "show_changed";
+	private static final long SECONDS_PER_DAY = 86400L;
+	private static final int INITIAL_CAPACITY = 256;
+
+	private static final String SELECT_ROWS =
+		"SELECT s.sid, s.mvid, s.sdate, s.sttime, s.edtime, t.tid, t.cid, c.city_id"
+		+ " FROM Shows s, Plays p, Theaters t, Cinemas c"
+		+ " WHERE p.sid = s.sid AND t.tid = p.tid AND c.cid = t.cid";
+
+	//start of the show in seconds since the epoch day 0, the sort key
+	private long[] _start;
+	private int[] _end;
+	private long[] _sid;
+	private long[] _mvid;
+	private long[] _tid;
+	private long[] _cid;
+	private long[] _cityId;
+	private int _size = 0;
+
+	public ShowtimeIndex() {
+		allocate(INITIAL_CAPACITY);
+	}
+
+	/**
+	 * The result of a window query.  All arrays have length size and are
+	 * ordered by start time.
+	 */
+	public static class Result {
+		public final int size;
+		public final long[] start;
+		public final int[] end;
+		public final long[] sid;
+		public final long[] mvid;
+		public final long[] tid;
+		public final long[] cid;
+		public final long[] cityId;
+
+		Result(int size) {
+			this.size = size;
+			this.start = new long[size];
+			this.end = new int[size];
+			this.sid = new long[size];
+			this.mvid = new long[size];
+			this.tid = new long[size];
+			this.cid = new long[size];
+			this.cityId = new long[size];
+		}
+
+		public long epochDay(int i) {
+			return Math.floorDiv(start[i], SECONDS_PER_DAY);
+		}
+
+		public int startSecond(int i) {
+			return (int) Math.floorMod(start[i], SECONDS_PER_DAY);
+		}
+	}
+
+	/**
+	 * Method to build the sort key of a show start.
+	 *
+	 * @param epochDay the show date as days since 1970-01-01
+	 * @param secondOfDay the start time as seconds since midnight
+	 * @return the sort key
+	 */
+	public static long key(long epochDay, int secondOfDay) {
+		return epochDay * SECONDS_PER_DAY + secondOfDay;
+	}
+
+	/**
+	 * Method to subscribe a connection to show changes on CHANNEL.  Call it
+	 * before load() so no change made in between is missed.
+	 *
+	 * @param conn the connection that will poll for changes
+	 * @throws java.sql.SQLException when failed to execute LISTEN
+	 */
+	public static void listen(Connection conn) throws SQLException {
+		Statement stmt = conn.createStatement();
+		try {
+			stmt.execute("LISTEN " + CHANNEL);
+		} finally {
+			stmt.close();
+		}
+	}
+
+	/**
+	 * Method to (re)load the whole index from the database.
+	 *
+	 * @param conn the connection to read from
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public synchronized void load(Connection conn) throws SQLException {
+		Statement stmt = conn.createStatement();
+		ResultSet rs = stmt.executeQuery(SELECT_ROWS + " ORDER BY s.sdate, s.sttime");
+		allocate(INITIAL_CAPACITY);
+		_size = 0;
+		while (rs.next()) {
+			ensureCapacity(_size + 1);
+			set(_size++, rs);
+		}//end while
+		stmt.close();
+	}
+
+	/**
+	 * Method to refresh the rows of a single show after it was added or
+	 * changed.  Rows for the show are dropped and re-read from the database.
+	 *
+	 * @param conn the connection to read from
+	 * @param sid the show ID
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public synchronized void refreshShow(Connection conn, long sid) throws SQLException {
+		removeShow(sid);
+		PreparedStatement stmt = conn.prepareStatement(SELECT_ROWS + " AND s.sid = ?");
+		stmt.setLong(1, sid);
+		ResultSet rs = stmt.executeQuery();
+		while (rs.next()) {
+			ensureCapacity(_size + 1);
+			long start = key(rs.getDate(3).toLocalDate().toEpochDay(),
+				rs.getTime(4).toLocalTime().toSecondOfDay());
+			int pos = upperBound(start);
+			shift(pos, pos + 1, _size - pos);
+			set(pos, rs);
+			_size++;
+		}//end while
+		stmt.close();
+	}
+
+	/**
+	 * Method to drop every row of a show from the index.
+	 *
+	 * @param sid the show ID
+	 */
+	public synchronized void removeShow(long sid) {
+		int kept = 0;
+		for (int i = 0; i < _size; i++) {
+			if (_sid[i] != sid) {
+				if (kept != i) {
+					copy(i, kept);
+				}
+				kept++;
+			}
+		}
+		_size = kept;
+	}
+
+	/**
+	 * Method to drop every show on the given date.  Since rows are sorted by
+	 * date the removed rows are contiguous.
+	 *
+	 * @param epochDay the date as days since 1970-01-01
+	 */
+	public synchronized void removeDay(long epochDay) {
+		int lo = lowerBound(key(epochDay, 0));
+		int hi = lowerBound(key(epochDay + 1, 0));
+		shift(hi, lo, _size - hi);
+		_size -= hi - lo;
+	}
+
+	/**
+	 * Method to find every show starting within [from, to], both inclusive,
+	 * optionally restricted to a city and/or a cinema.
+	 *
+	 * @param from the first start key, see key()
+	 * @param to the last start key, see key()
+	 * @param cityId the city to match or -1 for any
+	 * @param cid the cinema to match or -1 for any
+	 * @return the matching rows ordered by start time
+	 */
+	public synchronized Result window(long from, long to, long cityId, long cid) {
+		int lo = lowerBound(from);
+		int hi = upperBound(to);
+		int count = 0;
+		int[] hits = new int[Math.max(hi - lo, 0)];
+		for (int i = lo; i < hi; i++) {
+			if ((cityId < 0 || _cityId[i] == cityId) && (cid < 0 || _cid[i] == cid)) {
+				hits[count++] = i;
+			}
+		}
+		return collect(hits, count);
+	}
+
+	/**
+	 * Method to find every show starting within [from, to], both inclusive,
+	 * in any of the given cities.
+	 *
+	 * @param from the first start key, see key()
+	 * @param to the last start key, see key()
+	 * @param cityIds the cities to match, sorted ascending
+	 * @return the matching rows ordered by start time
+	 */
+	public synchronized Result window(long from, long to, long[] cityIds) {
+		int lo = lowerBound(from);
+		int hi = upperBound(to);
+		int count = 0;
+		int[] hits = new int[Math.max(hi - lo, 0)];
+		for (int i = lo; i < hi; i++) {
+			if (Arrays.binarySearch(cityIds, _cityId[i]) >= 0) {
+				hits[count++] = i;
+			}
+		}
+		return collect(hits, count);
+	}
+
+	public synchronized int size() {
+		return _size;
+	}
+
+	//copies the rows at the first count positions of hits into a result
+	private Result collect(int[] hits, int count) {
+		Result result = new Result(count);
+		for (int j = 0; j < count; j++) {
+			int i = hits[j];
+			result.start[j] = _start[i];
+			result.end[j] = _end[i];
+			result.sid[j] = _sid[i];
+			result.mvid[j] = _mvid[i];
+			result.tid[j] = _tid[i];
+			result.cid[j] = _cid[i];
+			result.cityId[j] = _cityId[i];
+		}
+		return result;
+	}
+
+	//first position whose start is >= key
+	private int lowerBound(long key) {
+		int lo = 0, hi = _size;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (_start[mid] < key) lo = mid + 1; else hi = mid;
+		}
+		return lo;
+	}
+
+	//first position whose start is > key
+	private int upperBound(long key) {
+		int lo = 0, hi = _size;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (_start[mid] <= key) lo = mid + 1; else hi = mid;
+		}
+		return lo;
+	}
+
+	private void set(int i, ResultSet rs) throws SQLException {
+		_sid[i] = rs.getLong(1);
+		_mvid[i] = rs.getLong(2);
+		_start[i] = key(rs.getDate(3).toLocalDate().toEpochDay(),
+			rs.getTime(4).toLocalTime().toSecondOfDay());
+		_end[i] = rs.getTime(5).toLocalTime().toSecondOfDay();
+		_tid[i] = rs.getLong(6);
+		_cid[i] = rs.getLong(7);
+		_cityId[i] = rs.getLong(8);
+	}
+
+	private void copy(int from, int to) {
+		_start[to] = _start[from];
+		_end[to] = _end[from];
+		_sid[to] = _sid[from];
+		_mvid[to] = _mvid[from];
+		_tid[to] = _tid[from];
+		_cid[to] = _cid[from];
+		_cityId[to] = _cityId[from];
+	}
+
+	private void shift(int from, int to, int length) {
+		System.arraycopy(_start, from, _start, to, length);
+		System.arraycopy(_end, from, _end, to, length);
+		System.arraycopy(_sid, from, _sid, to, length);
+		System.arraycopy(_mvid, from, _mvid, to, length);
+		System.arraycopy(_tid, from, _tid, to, length);
+		System.arraycopy(_cid, from, _cid, to, length);
+		System.arraycopy(_cityId, from, _cityId, to, length);
+	}
+
+	private void ensureCapacity(int needed) {
+		if (needed > _start.length) {
+			int capacity = Math.max(needed, _start.length * 2);
+			_start = Arrays.copyOf(_start, capacity);
+			_end = Arrays.copyOf(_end, capacity);
+			_sid = Arrays.copyOf(_sid, capacity);
+			_mvid = Arrays.copyOf(_mvid, capacity);
+			_tid = Arrays.copyOf(_tid, capacity);
+			_cid = Arrays.copyOf(_cid, capacity);
+			_cityId = Arrays.copyOf(_cityId, capacity);
+		}
+	}
+
+	private void allocate(int capacity) {
+		_start = new long[capacity];
+		_end = new int[capacity];
+		_sid = new long[capacity];
+		_mvid = new long[capacity];
+		_tid = new long[capacity];
+		_cid = new long[capacity];
+		_cityId = new long[capacity];
+	}
+}
@@ -16,12 +16,28 @@ import java.sql.Statement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
 import java.io.File;
 import java.io.FileReader;
+import java.io.FileInputStream;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.IOException;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.HashSet;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
 import java.math.BigInteger;  
 import java.nio.charset.StandardCharsets; 
 import java.security.MessageDigest;  
@@ -35,17 +51,96 @@ import java.security.NoSuchAlgorithmException;
 public class Ticketmaster{
 	//reference to physical database connection
 	private Connection _connection = null;
+	//how _connection was opened, for jobs that need connections of their own
+	private String _url = null;
+	private String _user = null;
+	private String _passwd = null;
+	//routes reads to the replicas and writes to _connection
+	private ConnectionRouter _router = null;
+	//hands out bid, mvid, sid, ... from blocks reserved on the id sequences
+	private IdAllocator _ids = null;
+	//Bloom filter of Users.email, answers unknown emails without a query
+	private EmailFilter _emails = null;
+	//set by pollNotifications when a location table changed
+	private boolean _locationsChanged = false;
+	//shows other clients changed since the showtime index was last refreshed
+	private final Set<Long> _changedShows = new HashSet<Long>();
+	//audit journal of booking state changes, null if it could not be opened
+	private BookingJournal _journal = null;
+	//in-memory index of show start times, loaded on first use
+	private ShowtimeIndex _showIndex = null;
+	//in-memory copy of Cities, Cinemas and Theaters, loaded on first use
+	private LocationHierarchy _locations = null;
+	//seat maps of recently viewed shows
+	private final SeatMap.Cache _seatMaps = new SeatMap.Cache(SEAT_MAP_TTL_MS, SEAT_MAP_CACHE_SHOWS);
+	//applies timeouts, retries and the circuit breaker to the execute* methods
+	//and the index loads; the rest only get the session timeouts of usePolicy
+	private final PolicyExecutor _executor = new PolicyExecutor();
+	//policy of the operation in progress, see usePolicy
+	private ExecutionPolicy _policy = ExecutionPolicy.DEFAULT;
 	static BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+	//single buffered writer for query output, flushed once per operation
+	private final PrintWriter _console = new PrintWriter(new BufferedWriter(
+		new OutputStreamWriter(System.out, StandardCharsets.UTF_8), ResultRenderer.BUFFER_SIZE));
+	//rows streamed from the server per round trip by executeQueryAndRender
+	private static final int FETCH_SIZE = 1000;
+	//rows shown per page when paging through a result on screen
+	private static final int PAGE_SIZE = 20;
+	//above this many changed shows the showtime index is reloaded, not refreshed show by show
+	private static final int SHOW_REFRESH_LIMIT = 100;
+	//how long reads of a user stay on the primary after that user wrote
+	private static final long REPLICA_STALENESS_MS = Long.getLong("ticketmaster.replicaStalenessMs", 5000L);
+	//where the booking journal segments are written
+	private static final String JOURNAL_DIR = System.getProperty("ticketmaster.journalDir", "journal");
+	//how long a seat map is served from the cache, bookings by other clients show after this
+	private static final long SEAT_MAP_TTL_MS = Long.getLong("ticketmaster.seatMapTtlMs", 2000L);
+	//shows whose seat maps are cached at most
+	private static final int SEAT_MAP_CACHE_SHOWS = 1024;
 	
 	public Ticketmaster(String dbname, String dbport, String user, String passwd) throws SQLException {
+		this(localUrl(dbname, dbport), new ArrayList<String>(), user, passwd);
+	}
+
+	/**
+	 * Connects to a primary and any number of read replicas.  Read-only
+	 * operations are spread over the replicas, everything else runs on the
+	 * primary.
+	 * 
+	 * @param primaryUrl the JDBC URL of the primary
+	 * @param replicaUrls the JDBC URLs of the replicas, may be empty
+	 * @param user the database user
+	 * @param passwd the database password
+	 */
+	public Ticketmaster(String primaryUrl, List<String> replicaUrls, String user, String passwd) throws SQLException {
 		System.out.print("Connecting to database...");
 		try{
-			// constructs the connection URL
-			String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
-			System.out.println ("Connection URL: " + url + "\n");
+			System.out.println ("Connection URL: " + primaryUrl + "\n");
 			
 			// obtain a physical connection
-	        this._connection = DriverManager.getConnection(url, user, passwd);
+	        this._connection = DriverManager.getConnection(primaryUrl, user, passwd);
+	        this._url = primaryUrl;
+	        this._user = user;
+	        this._passwd = passwd;
+	        List<Connection> replicas = new ArrayList<Connection>();
+	        for (String url : replicaUrls){
+	        	System.out.println ("Replica URL: " + url);
+	        	try{
+	        		Connection replica = DriverManager.getConnection(url, user, passwd);
+	        		replica.setReadOnly(true);
+	        		replicas.add(replica);
+	        	}catch(SQLException e){
+	        		//reads fall back to the remaining replicas or the primary
+	        		System.err.println("Warning - Skipping unreachable replica " + url + ": " + e.getMessage());
+	        	}
+	        }
+	        this._router = new ConnectionRouter(this._connection, replicas, REPLICA_STALENESS_MS);
+	        this._ids = new IdAllocator(this._connection);
+	        emailFilter();
+	        try{
+	        	this._journal = new BookingJournal(new File(JOURNAL_DIR));
+	        }catch(IOException e){
+	        	System.err.println("Warning - Unable to open the booking journal: " + e.getMessage());
+	        }
 	        System.out.println("Done");
 		}catch(Exception e){
 			System.err.println("Error - Unable to Connect to Database: " + e.getMessage());
@@ -54,6 +149,17 @@ public class Ticketmaster{
 		}
 	}
 	
+	/**
+	 * Method to construct the connection URL of a database on this machine.
+	 * 
+	 * @param dbname the database name
+	 * @param dbport the port postgres listens on
+	 * @return the JDBC URL
+	 */
+	public static String localUrl(String dbname, String dbport) {
+		return "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
+	}
+
 	/**
 	 * Method to execute an update SQL statement.  Update SQL instructions
 	 * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
@@ -62,16 +168,66 @@ public class Ticketmaster{
 	 * @throws java.sql.SQLException when update failed
 	 * */
 	public void executeUpdate (String sql) throws SQLException { 
-		// creates a statement object
-		Statement stmt = this._connection.createStatement ();
+		executeUpdate (sql, null);
+	}//end executeUpdate
 
+	/**
+	 * Method to execute an update SQL statement on behalf of a user.  Reads
+	 * of that user go to the primary for a while afterwards, so the user
+	 * always sees their own writes.
+	 * 
+	 * @param sql the input SQL string
+	 * @param user the user the update is for, or null if it may affect any user
+	 * @throws java.sql.SQLException when update failed
+	 * */
+	public void executeUpdate (final String sql, String user) throws SQLException { 
 		// issues the update instruction
-		stmt.executeUpdate (sql);
-
-		// close the instruction
-	    stmt.close ();
+		try{
+			this._executor.execute (this._connection, this._policy, new PolicyExecutor.Work<Integer>() {
+				public Integer run (Statement stmt) throws SQLException {
+					return stmt.executeUpdate (sql);
+				}
+			});
+		}finally{
+			// marked even on failure, the statement may have committed before the error surfaced
+			this._router.markWrite (user);
+		}
 	}//end executeUpdate
 
+	/**
+	 * Method to execute an update SQL statement with a RETURNING clause on
+	 * behalf of a user, and return the returned rows.
+	 * 
+	 * @param sql the input SQL string, ending in RETURNING
+	 * @param user the user the update is for, or null if it may affect any user
+	 * @return the returned rows as a list of records
+	 * @throws java.sql.SQLException when update failed
+	 * */
+	public List<List<String>> executeUpdateReturning (String sql, String user) throws SQLException { 
+		try{
+			return executeQueryAndReturnResult (this._connection, sql);
+		}finally{
+			this._router.markWrite (user);
+		}
+	}//end executeUpdateReturning
+
+	/**
+	 * Method to record a booking state change in the journal.  Only queues
+	 * the event, the journal writes it in the background.
+	 * 
+	 * @param type the event type, see BookingJournal
+	 * @param bid the booking ID
+	 * @param sid the show ID, 0 if unknown
+	 * @param ssid the show seat ID, 0 if none
+	 * @param aux the payment ID for PAYMENT_REMOVED, else 0
+	 * @param status the booking status after the change
+	 */
+	public void journal (byte type, long bid, long sid, long ssid, long aux, byte status) {
+		if (this._journal != null){
+			this._journal.append (type, bid, sid, ssid, aux, status);
+		}//end if
+	}
+
 	/**
 	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
 	 * method issues the query to the DBMS and outputs the results to
@@ -82,37 +238,86 @@ public class Ticketmaster{
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
 	public int executeQueryAndPrintResult (String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
+		ResultRenderer renderer = new ResultRenderer(this._console, ResultRenderer.Format.TABLE, 0, null);
+		return (int) executeQueryAndRender(query, renderer);
+	}
 
-		//issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
+	/**
+	 * Method to execute an input query SQL instruction (i.e. SELECT) and
+	 * stream the results through a renderer.  The rows are fetched from a
+	 * server side cursor FETCH_SIZE at a time, so the result is never held
+	 * in memory as a whole.
+	 * 
+	 * @param query the input query string
+	 * @param renderer where the rows are written to
+	 * @return the number of rows written
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public long executeQueryAndRender (String query, ResultRenderer renderer) throws SQLException {
+		return executeQueryAndRender (query, renderer, ConnectionRouter.Staleness.PRIMARY);
+	}
 
-		/*
-		 *  obtains the metadata object for the returned result set.  The metadata
-		 *  contains row and column info.
-		 */
-		ResultSetMetaData rsmd = rs.getMetaData ();
-		int numCol = rsmd.getColumnCount ();
-		int rowCount = 0;
-		
-		//iterates through the result set and output them to standard out.
-		boolean outputHeader = true;
-		while (rs.next()){
-			if(outputHeader){
-				for(int i = 1; i <= numCol; i++){
-					System.out.print(rsmd.getColumnName(i) + "\t");
-			    }
-			    System.out.println();
-			    outputHeader = false;
-			}
-			for (int i=1; i<=numCol; ++i)
-				System.out.print (rs.getString (i) + "\t");
-			System.out.println ();
-			++rowCount;
-		}//end while
-		stmt.close ();
-		return rowCount;
+	/**
+	 * Method to stream a read-only query through a renderer, routed to a
+	 * replica when the staleness policy allows it.  If the replica cannot
+	 * be reached before any row was written the query is run on the
+	 * primary instead.
+	 * 
+	 * @param query the input query string
+	 * @param renderer where the rows are written to
+	 * @param staleness the staleness policy of the operation
+	 * @return the number of rows written
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public long executeQueryAndRender (String query, ResultRenderer renderer, ConnectionRouter.Staleness staleness) throws SQLException {
+		Connection conn = this._router.forRead (null, staleness);
+		boolean[] rendering = {false};
+		try{
+			return executeQueryAndRender (conn, query, renderer, rendering);
+		}catch (SQLException e){
+			//rows already written would be written twice by a retry
+			if (conn == this._connection || rendering[0] || !isConnectionError (e)){
+				throw e;
+			}//end if
+			return executeQueryAndRender (this._connection, query, renderer, rendering);
+		}//end try
+	}
+
+	private long executeQueryAndRender (Connection conn, final String query, final ResultRenderer renderer, final boolean[] rendering) throws SQLException {
+		//postgres only uses a cursor for the fetch size outside of autocommit
+		boolean autoCommit = conn.getAutoCommit ();
+		conn.setAutoCommit (false);
+		try{
+			return this._executor.execute (conn, this._policy, new PolicyExecutor.Work<Long>() {
+				public Long run (Statement stmt) throws SQLException {
+					stmt.setFetchSize (FETCH_SIZE);
+					ResultSet rs = stmt.executeQuery (query);
+					rendering[0] = true;
+					try{
+						return renderer.render (rs);
+					}catch (IOException e){
+						throw new SQLException ("Unable to write the query result: " + e.getMessage (), e);
+					}//end try
+				}
+			});
+		}finally{
+			if (autoCommit){
+				try{
+					conn.rollback ();
+					conn.setAutoCommit (true);
+				}catch (SQLException e){
+					//a lost connection has no transaction left to end
+					if (!isConnectionError (e)){
+						throw e;
+					}//end if
+				}//end try
+			}//end if
+		}//end try
+	}
+
+	//class 08 is a connection exception, e.g. the replica is down
+	private static boolean isConnectionError (SQLException e) {
+		return e.getSQLState () != null && e.getSQLState ().startsWith ("08");
 	}
 	
 	/**
@@ -125,9 +330,41 @@ public class Ticketmaster{
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
 	public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException { 
-		//creates a statement object 
-		Statement stmt = this._connection.createStatement (); 
-		
+		return executeQueryAndReturnResult (query, null, ConnectionRouter.Staleness.PRIMARY);
+	}
+
+	/**
+	 * Method to execute a read-only query on a replica when the staleness
+	 * policy allows it, and return the results as a list of records.  If the
+	 * replica cannot be reached the query is run on the primary instead.
+	 * 
+	 * @param query the input query string
+	 * @param user the user the query is for, or null if it is not tied to one
+	 * @param staleness the staleness policy of the operation
+	 * @return the query result as a list of records
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public List<List<String>> executeQueryAndReturnResult (String query, String user, ConnectionRouter.Staleness staleness) throws SQLException { 
+		Connection conn = this._router.forRead (user, staleness);
+		try{
+			return executeQueryAndReturnResult (conn, query);
+		}catch (SQLException e){
+			if (conn == this._connection || !isConnectionError (e)){
+				throw e;
+			}//end if
+			return executeQueryAndReturnResult (this._connection, query);
+		}//end try
+	}
+
+	private List<List<String>> executeQueryAndReturnResult (Connection conn, final String query) throws SQLException { 
+		return this._executor.execute (conn, this._policy, new PolicyExecutor.Work<List<List<String>>>() {
+			public List<List<String>> run (Statement stmt) throws SQLException {
+				return readResult (stmt, query);
+			}
+		});
+	}
+
+	private static List<List<String>> readResult (Statement stmt, String query) throws SQLException { 
 		//issues the query instruction 
 		ResultSet rs = stmt.executeQuery (query); 
 	 
@@ -148,9 +385,8 @@ public class Ticketmaster{
 				record.add(rs.getString (i)); 
 			result.add(record); 
 		}//end while 
-		stmt.close (); 
 		return result; 
-	}//end executeQueryAndReturnResult
+	}//end readResult
 	
 	/**
 	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
@@ -160,21 +396,45 @@ public class Ticketmaster{
 	 * @return the number of rows returned
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
-	public int executeQuery (String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
+	public int executeQuery (final String query) throws SQLException {
+		return this._executor.execute (this._connection, this._policy, new PolicyExecutor.Work<Integer>() {
+			public Integer run (Statement stmt) throws SQLException {
+				//issues the query instruction
+				ResultSet rs = stmt.executeQuery (query);
 
-		//issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
+				int rowCount = 0;
 
-		int rowCount = 0;
+				//iterates through the result set and count nuber of results.
+				if(rs.next()){
+					rowCount++;
+				}//end while
+				return rowCount;
+			}
+		});
+	}
 
-		//iterates through the result set and count nuber of results.
-		if(rs.next()){
-			rowCount++;
-		}//end while
-		stmt.close ();
-		return rowCount;
+	/**
+	 * Method to set the execution policy the following statements run
+	 * under, until the next call.
+	 * 
+	 * @param policy the policy of the operation about to run
+	 */
+	public void usePolicy (ExecutionPolicy policy) {
+		this._policy = policy;
+		try{
+			//set right away, the summaries, imports and id blocks query the primary directly
+			this._executor.apply (this._connection, policy);
+		}catch (SQLException e){
+			// ignored, the next statement sets it again.
+		}//end try
+	}
+
+	/**
+	 * Method to cancel the statement currently running through the
+	 * executor, if any.  May be called from another thread.
+	 */
+	public void cancelRunningStatement () {
+		this._executor.cancel ();
 	}
 	
 	/**
@@ -195,11 +455,194 @@ public class Ticketmaster{
 		return -1;
 	}
 
+	/**
+	 * Method to return the showtime index, loading it from the database the
+	 * first time it is needed.  Shows other clients changed since the last
+	 * call are refreshed one by one, or the whole index is reloaded when
+	 * there are more than SHOW_REFRESH_LIMIT of them.
+	 * 
+	 * @return the loaded showtime index
+	 * @throws java.sql.SQLException when failed to load the index
+	 */
+	public ShowtimeIndex showIndex() throws SQLException {
+		if (this._showIndex != null){
+			pollNotifications ();
+			if (this._changedShows.size() > SHOW_REFRESH_LIMIT){
+				this._showIndex = null;
+			}//end if
+		}//end if
+		if (this._showIndex == null){
+			this._changedShows.clear();
+			this._showIndex = this._executor.execute (this._connection, this._policy, new PolicyExecutor.Work<ShowtimeIndex>() {
+				public ShowtimeIndex run(Statement stmt) throws SQLException {
+					ShowtimeIndex.listen(stmt.getConnection());
+					ShowtimeIndex index = new ShowtimeIndex();
+					index.load(stmt.getConnection());
+					return index;
+				}
+			});
+		}
+		else if (!this._changedShows.isEmpty()){
+			final ShowtimeIndex index = this._showIndex;
+			final Long[] sids = this._changedShows.toArray(new Long[0]);
+			this._executor.execute (this._connection, this._policy, new PolicyExecutor.Work<Void>() {
+				public Void run(Statement stmt) throws SQLException {
+					for (Long sid : sids){
+						index.refreshShow(stmt.getConnection(), sid);
+					}//end for
+					return null;
+				}
+			});
+			this._changedShows.clear();
+		}//end if
+		return this._showIndex;
+	}
+
+	/**
+	 * Method to return the location hierarchy, loading it the first time it
+	 * is needed and again whenever the triggers on the location tables
+	 * report a change.
+	 * 
+	 * @return the loaded location hierarchy
+	 * @throws java.sql.SQLException when failed to load the hierarchy
+	 */
+	public LocationHierarchy locations() throws SQLException {
+		if (this._locations == null){
+			LocationHierarchy.listen(this._connection);
+			this._locationsChanged = false;
+			this._locations = loadLocations ();
+			return this._locations;
+		}//end if
+		pollNotifications ();
+		if (this._locationsChanged){
+			this._locationsChanged = false;
+			this._locations = loadLocations ();
+			//the index holds the city of every cinema, which may have changed too
+			this._showIndex = null;
+		}//end if
+		return this._locations;
+	}
+
+	private LocationHierarchy loadLocations () throws SQLException {
+		return this._executor.execute (this._connection, this._policy, new PolicyExecutor.Work<LocationHierarchy>() {
+			public LocationHierarchy run(Statement stmt) throws SQLException {
+				return LocationHierarchy.load(stmt.getConnection());
+			}
+		});
+	}
+
+	/**
+	 * Method to return the seat map of a show, from the cache when it was
+	 * loaded less than SEAT_MAP_TTL_MS ago.  Maps are loaded from the
+	 * primary so a map reloaded after a booking change always shows it.
+	 * 
+	 * @param sid the show ID
+	 * @return the seat map, empty if the show has no seats
+	 * @throws java.sql.SQLException when failed to load the map
+	 */
+	public SeatMap seatMap(long sid) throws SQLException {
+		return this._seatMaps.get (this._connection, sid);
+	}
+
+	/**
+	 * Method to apply the notifications the primary connection has received
+	 * to the caches listening for them.  Only reads what already arrived on
+	 * the socket, so it costs no round trip.
+	 * 
+	 * @throws java.sql.SQLException when failed to read the notifications
+	 */
+	private void pollNotifications () throws SQLException {
+		PGConnection conn = this._connection.unwrap(PGConnection.class);
+		PGNotification[] notifications = conn.getNotifications();
+		if (notifications == null){
+			return;
+		}//end if
+		for (PGNotification notification : notifications){
+			if (LocationHierarchy.CHANNEL.equals(notification.getName())){
+				this._locationsChanged = true;
+			}
+			//this session's own show and email changes are applied where it makes them
+			else if (ShowtimeIndex.CHANNEL.equals(notification.getName()) && this._showIndex != null
+					&& notification.getPID() != conn.getBackendPID()){
+				this._changedShows.add(Long.parseLong(notification.getParameter()));
+			}
+			else if (EmailFilter.CHANNEL.equals(notification.getName()) && this._emails != null
+					&& notification.getPID() != conn.getBackendPID()){
+				if (notification.getParameter().isEmpty()){
+					//a bulk load, too many emails to send one by one
+					this._emails = null;
+				}
+				else{
+					this._emails.add(notification.getParameter());
+				}//end if
+			}//end if
+		}//end for
+	}
+
+	/**
+	 * Method to return the email filter, building it with one streaming scan
+	 * of Users when it is missing or saturated.  In between it is kept
+	 * current from the notifications on EmailFilter.CHANNEL.  The scan runs
+	 * under the REPORT policy, it may take longer than an interactive
+	 * statement is allowed to.
+	 * 
+	 * @return the email filter, or null if it could not be built
+	 */
+	public EmailFilter emailFilter() {
+		try{
+			pollNotifications ();
+			EmailFilter filter = this._emails;
+			if (filter == null || filter.isSaturated()){
+				this._emails = null;
+				this._emails = this._executor.execute (this._connection, ExecutionPolicy.REPORT, new PolicyExecutor.Work<EmailFilter>() {
+					public EmailFilter run(Statement stmt) throws SQLException {
+						//before the scan, so no email added in between is missed
+						EmailFilter.listen(stmt.getConnection());
+						return EmailFilter.load(stmt.getConnection());
+					}
+				});
+			}//end if
+		}catch (SQLException e){
+			// ignored, every email is then checked against the database.
+		}//end try
+		return this._emails;
+	}
+
+	/**
+	 * Method to check whether a user with the given email exists.  An email
+	 * the filter has never seen is answered without a round trip: the
+	 * filter holds every email of the scan it was built from and every one
+	 * notified since.  Only a user added by another client in the moment
+	 * before, whose notification has not arrived yet, can be missed.  Hits
+	 * may be false positives and are confirmed with a primary key lookup.
+	 * 
+	 * @param email the email to check
+	 * @return true if a user with this email exists
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public boolean isRegisteredEmail(String email) throws SQLException {
+		EmailFilter filter = emailFilter();
+		if (filter != null && !filter.mightContain(email)){
+			return false;
+		}//end if
+		return executeQuery(String.format("SELECT email FROM Users WHERE email = '%s'", email)) > 0;
+	}
+
 	/**
 	 * Method to close the physical connection if it is open.
 	 */
 	public void cleanup(){
 		try{
+			if (this._journal != null){
+				this._journal.close ();
+			}//end if
+		}catch (IOException e){
+			System.err.println ("Warning - Unable to write the booking journal: " + e.getMessage ());
+		}//end try
+		try{
+			if (this._router != null){
+				this._router.close ();
+			}//end if
 			if (this._connection != null){
 				this._connection.close ();
 			}//end if
@@ -214,10 +657,10 @@ public class Ticketmaster{
 	 * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
 	 */
 	public static void main (String[] args) {
-		if (args.length != 3) {
+		if (args.length < 3) {
 			System.err.println (
 				"Usage: " + "java [-classpath <classpath>] " + Ticketmaster.class.getName () +
-		            " <dbname> <port> <user>");
+		            " <dbname> <port> <user> [<replica port or URL> ...]");
 			return;
 		}//end if
 		
@@ -239,8 +682,19 @@ public class Ticketmaster{
 			String dbname = args[0];
 			String dbport = args[1];
 			String user = args[2];
+			List<String> replicas = new ArrayList<String>();
+			for (int i = 3; i < args.length; i++) {
+				replicas.add(args[i].startsWith("jdbc:") ? args[i] : localUrl(dbname, args[i]));
+			}
 			
-			esql = new Ticketmaster (dbname, dbport, user, "");
+			esql = new Ticketmaster (localUrl(dbname, dbport), replicas, user, "");
+			//on Ctrl-C, stop the server working on a statement nobody waits for anymore
+			final Ticketmaster running = esql;
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				public void run() {
+					running.cancelRunningStatement();
+				}
+			});
 			
 			boolean keepon = true;
 			while(keepon){
@@ -260,12 +714,21 @@ public class Ticketmaster{
 				System.out.println("12. List the First Name, Last Name, and Email of Users with a Pending Booking");
 				System.out.println("13. List the Title, Duration, Date, and Time of Shows Playing a Given Movie at a Given Cinema During a Date Range");
 				System.out.println("14. List the Movie Title, Show Date & Start Time, Theater Name, and Cinema Seat Number for all Bookings of a Given User");
-				System.out.println("15. EXIT");
+				System.out.println("15. List all Shows that Start Within a Time Window on a Given Date");
+				System.out.println("16. Export a Table as a Table, CSV or JSON Lines");
+				System.out.println("17. Revenue and Occupancy Reports");
+				System.out.println("18. Bulk Import Users from a CSV File");
+				System.out.println("19. Browse Shows in a City or Zip Code");
+				System.out.println("20. View the Seat Map of a Show");
+				System.out.println("21. Reconcile Payments with Bookings and Seat Prices");
+				System.out.println("22. EXIT");
 				
 				/*
 				 * FOLLOW THE SPECIFICATION IN THE PROJECT DESCRIPTION
 				 */
-				switch (readChoice()){
+				int choice = readChoice();
+				esql.usePolicy(ExecutionPolicy.forOperation(choice));
+				switch (choice){
 					case 1: AddUser(esql); break;
 					case 2: AddBooking(esql); break;
 					case 3: AddMovieShowingToTheater(esql); break;
@@ -280,7 +743,14 @@ public class Ticketmaster{
 					case 12: ListUsersWithPendingBooking(esql); break;
 					case 13: ListMovieAndShowInfoAtCinemaInDateRange(esql); break;
 					case 14: ListBookingInfoForUser(esql); break;
-					case 15: keepon = false; break;
+					case 15: ListShowsStartingInTimeWindow(esql); break;
+					case 16: ExportTable(esql); break;
+					case 17: RevenueReports(esql); break;
+					case 18: BulkImportUsers(esql); break;
+					case 19: BrowseShowsByLocation(esql); break;
+					case 20: ViewSeatMap(esql); break;
+					case 21: ReconcilePayments(esql); break;
+					case 22: keepon = false; break;
 				}
 			}
 		}catch(Exception e){
@@ -392,6 +862,17 @@ public class Ticketmaster{
 		long phone;
 		System.out.print("Please enter your email: \n");
 		email = readText();
+		try {
+			while (esql.isRegisteredEmail(email)) {
+				System.out.print("This email is already registered. Please enter a different email (leave empty to cancel): \n");
+				email = readText();
+				if (email.trim().isEmpty()) {
+					return;
+				}
+			}
+		} catch(Exception e) {
+			System.out.print("Unable to check your email, it will be checked when the User is added. Your error message is " + e.getMessage() + '\n');
+		}
 		System.out.print("Please enter your first name: \n");
 		fname = readText();
 		System.out.print("Please enter your last name: \n");
@@ -412,7 +893,10 @@ public class Ticketmaster{
                         + " VALUES('%s','%s','%s','%s','%s') ", email, lname, fname, phone, pwd);
  
 		try {
-			esql.executeUpdate(query);
+			esql.executeUpdate(query, email);
+			if (esql._emails != null) {
+				esql._emails.add(email);
+			}
 			System.out.print("The following User has been added to the Database:" + '\n');
 			System.out.print("Email: " + email + '\n');
 			System.out.print("Last Name: " + lname + '\n');
@@ -427,10 +911,9 @@ public class Ticketmaster{
 	public static void AddBooking(Ticketmaster esql){//2
 		String status, bdate, btime, btz, email;
 		String bdatetime;
-		int bid, seats, sid;
+		long bid;
+		int seats, sid;
 		
-		System.out.print("Please enter your booking ID: \n");
-		bid = readInt();
 		ArrayList<String> validStatus = new ArrayList<String>();
         validStatus.add("Pending");
         validStatus.add("Paid");
@@ -461,13 +944,31 @@ public class Ticketmaster{
 		seats = readInt();
 		System.out.print("Please enter the email that belongs to your booking: \n");
 		email = readText();
+		try {
+			while (!esql.isRegisteredEmail(email)) {
+				System.out.print("No User is registered with this email. Please reenter the email that belongs to your booking (leave empty to cancel): \n");
+				email = readText();
+				if (email.trim().isEmpty()) {
+					return;
+				}
+			}
+		} catch(Exception e) {
+			System.out.print("Unable to check the email, it will be checked when the Booking is added. Your error message is " + e.getMessage() + '\n');
+		}
 		System.out.print("Please enter the show ID of your booking: \n");
 		sid = readInt();
+		try {
+			bid = esql._ids.next(IdAllocator.BOOKINGS);
+		} catch(Exception e) {
+			System.out.print("An error occurred. Please reenter the Booking to the database. Your error message is " + e.getMessage() + '\n');
+			return;
+		}
 		String query = String.format(
                 "INSERT INTO Bookings(BID, STATUS, BDATETIME, SEATS, SID, EMAIL)"
                         + " VALUES(%s,'%s','%s', %s, %s, '%s') ", bid, status, bdatetime, seats, sid, email);
 		try {
-			esql.executeUpdate(query);
+			esql.executeUpdate(query, email);
+			esql.journal(BookingJournal.BOOKING_ADDED, bid, sid, 0, 0, BookingJournal.statusCode(status));
 			System.out.print("The following Booking has been added to the Database:" + '\n');
 			System.out.print("Bid: " + bid + '\n');
 			System.out.print("Status: " + status + '\n');
@@ -507,18 +1008,22 @@ public class Ticketmaster{
 			System.out.print("Invalid input. Your exception is " + e.getMessage() + '\n');
 		}
 	
-		int mvid;
+		long mvid;
 		String title, rdate, country;
 
 		System.out.print("Please enter the movie you would like to add. \n");
-		System.out.print("Please enter the movie's mvid: \n");
-		mvid = readInt();
 		System.out.print("Please enter the movie's title: \n");
 		title = readText();
 		System.out.print("Please enter the movie's release date (MM/DD/YYYY): \n");
 		rdate = readText();
 		System.out.print("Please enter the movie's country: \n");
 		country = readText();
+		try {
+			mvid = esql._ids.next(IdAllocator.MOVIES);
+		} catch(Exception e) {
+			System.out.print("An error occurred. Please reenter the Movie to the database. Your error message is " + e.getMessage() + '\n');
+			return;
+		}
 
 		String query = String.format("INSERT INTO Movies(MVID, TITLE, RDATE, COUNTRY)"
 		+ " VALUES(%s,'%s','%s', '%s') ", mvid, title, rdate, country);
@@ -533,18 +1038,22 @@ public class Ticketmaster{
 			System.out.print("An error occurred. Please reenter the Movie to the database. Your error message is " + e.getMessage() + '\n');
 		}
 
-		int sid;
+		long sid;
 		String sdate, sttime, edtime;
 
 		System.out.print("Please enter the showing for the movie. \n");
-		System.out.print("Please enter the showing's sid: \n");
-		sid = readInt();
 		System.out.print("Please enter the showing's premier date (DD/MM/YYYY): \n");
 		sdate = readText();
 		System.out.print("Please enter the showing's start time (HH:MM (military time)): \n");
 		sttime = readText();
 		System.out.print("Please enter the showing's end time (HH:MM (military time)): \n");
 		edtime = readText();
+		try {
+			sid = esql._ids.next(IdAllocator.SHOWS);
+		} catch(Exception e) {
+			System.out.print("An error occurred. Please reenter the Show to the database. Your error message is " + e.getMessage() + '\n');
+			return;
+		}
 
 		String query2 = String.format("INSERT INTO Shows(SID, MVID, SDATE, STTIME, EDTIME)" 
 		+ " VALUES(%s, %s, '%s','%s','%s') ", sid, mvid, sdate, sttime, edtime);
@@ -556,15 +1065,29 @@ public class Ticketmaster{
 			System.out.print("Premier Date: " + sdate + '\n');
 			System.out.print("Start time: " + sttime + '\n');
 			System.out.print("End time: " + edtime + '\n');
+		} catch(Exception e) {
+			System.out.print("An error occurred. Please reenter the Show to the database. Your error message is " + e.getMessage() + '\n');
+			return;
+		}
+
+		String query3 = String.format("INSERT INTO Plays(SID, TID) VALUES(%s, %s) ", sid, tid);
+		try {
+			esql.executeUpdate(query3);
+			System.out.print("Show " + sid + " is now playing at Theater " + tid + '\n');
+			if (esql._showIndex != null) {
+				esql._showIndex.refreshShow(esql._connection, sid);
+			}
 		} catch(Exception e) {
 			System.out.print("An error occurred. Please reenter the Show to the database. Your error message is " + e.getMessage() + '\n');
 		}
 	}	
 	
 	public static void CancelPendingBookings(Ticketmaster esql){//4
-		String query = "UPDATE Bookings SET status = 'Cancelled' WHERE status = 'Pending'";	 
+		String query = "UPDATE Bookings SET status = 'Cancelled' WHERE status = 'Pending' RETURNING bid, sid";	 
 		try {
-			esql.executeUpdate(query);
+			for (List<String> row : esql.executeUpdateReturning(query, null)) {
+				esql.journal(BookingJournal.BOOKING_CANCELLED, Long.parseLong(row.get(0)), Long.parseLong(row.get(1)), 0, 0, BookingJournal.CANCELLED);
+			}
 			System.out.print("All Pending bookings are now have the status of Cancelled. \n");
 		}
 		catch(Exception e) {
@@ -598,15 +1121,22 @@ public class Ticketmaster{
 		int newSeat = readInt();
 		try {
 			List<List<String>> bid = esql.executeQueryAndReturnResult(bidQuery);
-			String oldBid = String.format("UPDATE Showseats SET bid = NULL WHERE bid = (%s)", bidQuery);
-			String query = String.format("UPDATE Showseats SET bid = '%s' WHERE ssid = '%s'", (bid.get(0)).get(0), newSeat); 
+			String oldBid = String.format("UPDATE Showseats SET bid = NULL WHERE bid = (%s) RETURNING ssid, sid", bidQuery);
+			String query = String.format("UPDATE Showseats SET bid = '%s' WHERE ssid = '%s' RETURNING ssid, sid", (bid.get(0)).get(0), newSeat); 
+			long changed = Long.parseLong((bid.get(0)).get(0));
 			try {
-				esql.executeUpdate(oldBid);
+				for (List<String> row : esql.executeUpdateReturning(oldBid, email)) {
+					esql._seatMaps.invalidate(Long.parseLong(row.get(1)));
+					esql.journal(BookingJournal.SEAT_RELEASED, changed, Long.parseLong(row.get(1)), Long.parseLong(row.get(0)), 0, BookingJournal.NO_STATUS);
+				}
 			} catch(Exception e) {
 				System.out.print("An error occured. Your error message is " + e.getMessage());
 			}
 			try {
-				esql.executeUpdate(query);
+				for (List<String> row : esql.executeUpdateReturning(query, email)) {
+					esql._seatMaps.invalidate(Long.parseLong(row.get(1)));
+					esql.journal(BookingJournal.SEAT_ASSIGNED, changed, Long.parseLong(row.get(1)), Long.parseLong(row.get(0)), 0, BookingJournal.NO_STATUS);
+				}
 				System.out.print("Your booking has been updated. \n");
 				System.out.print("Your new seat(s) is now: " + newSeat + "\n");
 			} catch(Exception e) {
@@ -621,9 +1151,11 @@ public class Ticketmaster{
 		int bid;
 		System.out.print("Please enter the bid of the Cancelled booking. \n" );
 		bid = readInt();
-		String query = String.format("DELETE FROM Payments WHERE bid = %s", bid);
+		String query = String.format("DELETE FROM Payments WHERE bid = %s RETURNING pid", bid);
 		try {
-			esql.executeUpdate(query);
+			for (List<String> row : esql.executeUpdateReturning(query, null)) {
+				esql.journal(BookingJournal.PAYMENT_REMOVED, bid, 0, 0, Long.parseLong(row.get(0)), BookingJournal.NO_STATUS);
+			}
 			System.out.print("Payment with associated bid of " + bid + " has been removed. \n");
 		}
 		catch(Exception e) {
@@ -632,9 +1164,11 @@ public class Ticketmaster{
 	}
 	
 	public static void ClearCancelledBookings(Ticketmaster esql){//7
-		String query = "DELETE FROM Bookings WHERE status = 'Cancelled'";
+		String query = "DELETE FROM Bookings WHERE status = 'Cancelled' RETURNING bid, sid";
 		try {
-			esql.executeUpdate(query);
+			for (List<String> row : esql.executeUpdateReturning(query, null)) {
+				esql.journal(BookingJournal.BOOKING_CLEARED, Long.parseLong(row.get(0)), Long.parseLong(row.get(1)), 0, 0, BookingJournal.CANCELLED);
+			}
 			System.out.print("Cancelled bookings have been removed from the database. \n");
 		}
 		catch(Exception e) {
@@ -647,20 +1181,41 @@ public class Ticketmaster{
 		System.out.print("Please enter the date which you would like to clear all existing shows for. \n");
 		date = readText(); 
 		String showQuery = String.format("SELECT sid FROM Shows WHERE sdate = '%s'", date);
-		String bidQuery = String.format("SELECT bid FROM Shows WHERE sid IN (%s)", showQuery);
+		String bidQuery = String.format("SELECT bid FROM Bookings WHERE sid IN (%s)", showQuery);
 		String deletePlays = String.format("DELETE FROM Plays WHERE sid IN (%s)", showQuery);
-		String deleteSeat = String.format("DELETE FROM ShowSeats WHERE sid IN (%s)", showQuery);
-		String deletePayment = String.format("DELETE FROM Payments WHERE bid IN (%s)", bidQuery);
-		String deleteBooking = String.format("DELETE FROM Bookings WHERE sid IN (%s)", showQuery);
+		String deleteSeat = String.format("DELETE FROM ShowSeats WHERE sid IN (%s) RETURNING ssid, sid, bid", showQuery);
+		String deletePayment = String.format("DELETE FROM Payments WHERE bid IN (%s) RETURNING pid, bid", bidQuery);
+		String deleteBooking = String.format("DELETE FROM Bookings WHERE sid IN (%s) RETURNING bid, sid, status", showQuery);
 		String query = String.format("DELETE FROM Shows WHERE sdate = '%s'", date);	
+		String dayQuery = String.format("SELECT CAST('%s' AS DATE) - DATE '1970-01-01'", date);
 		try {
 			esql.executeUpdate(deletePlays);
+			//the index only holds shows that play somewhere, so drop them even if a later delete fails
+			if (esql._showIndex != null) {
+				try {
+					List<List<String>> day = esql.executeQueryAndReturnResult(dayQuery);
+					esql._showIndex.removeDay(Long.parseLong(day.get(0).get(0)));
+				} catch(Exception e) {
+					//reloaded on next use instead
+					esql._showIndex = null;
+				}
+			}
 			try {
-				esql.executeUpdate(deleteSeat);
+				for (List<String> row : esql.executeUpdateReturning(deleteSeat, null)) {
+					//every seat of the show is gone, booked or not
+					esql._seatMaps.invalidate(Long.parseLong(row.get(1)));
+					if (row.get(2) != null) {
+						esql.journal(BookingJournal.SEAT_RELEASED, Long.parseLong(row.get(2)), Long.parseLong(row.get(1)), Long.parseLong(row.get(0)), 0, BookingJournal.NO_STATUS);
+					}
+				}
 				try {
-					esql.executeUpdate(deletePayment);
+					for (List<String> row : esql.executeUpdateReturning(deletePayment, null)) {
+						esql.journal(BookingJournal.PAYMENT_REMOVED, Long.parseLong(row.get(1)), 0, 0, Long.parseLong(row.get(0)), BookingJournal.NO_STATUS);
+					}
 					try {
-						esql.executeUpdate(deleteBooking);
+						for (List<String> row : esql.executeUpdateReturning(deleteBooking, null)) {
+							esql.journal(BookingJournal.BOOKING_CLEARED, Long.parseLong(row.get(0)), Long.parseLong(row.get(1)), 0, 0, BookingJournal.statusCode(row.get(2)));
+						}
 						try {
 							esql.executeUpdate(query);
 							System.out.print("Shows on the " + date + " have been removed from the database. \n");
@@ -682,30 +1237,32 @@ public class Ticketmaster{
 	}
 	
 	public static void ListTheatersPlayingShow(Ticketmaster esql){//9
+		PrintWriter out = esql._console;
 		System.out.print("Please input the SID of your inquired show: \n");
 		int sid;
 		sid = readInt();
 		String findTheaters = String.format("SELECT tname FROM Theaters WHERE tid IN (SELECT tid FROM Plays WHERE sid = %s);", sid);
 		try {
-			List<List<String>> theaters = esql.executeQueryAndReturnResult(findTheaters);
-			System.out.print("Theaters currently playing your specified show: \n");
+			List<List<String>> theaters = esql.executeQueryAndReturnResult(findTheaters, null, ConnectionRouter.Staleness.READ_YOUR_WRITES);
+			out.print("Theaters currently playing your specified show: \n");
 			if (theaters.size() == 0) {
-				System.out.print("No theaters are currently playing your specified show: \n");
+				out.print("No theaters are currently playing your specified show: \n");
 			}
 			else {
 				for (int i=0; i < theaters.size(); i++) {
 					for (int j=0; j < ((theaters.get(i)).size()); j++) {
-						System.out.print("Theater: " + (theaters.get(i)).get(j) + "\n");
+						out.print("Theater: " + (theaters.get(i)).get(j) + "\n");
 					}
 				}
 			}
 		} catch(Exception e) {
-			System.out.print("An error occurred. Your error message is " + e.getMessage() + " Please try again." + '\n');
+			out.print("An error occurred. Your error message is " + e.getMessage() + " Please try again." + '\n');
 		}
-		
+		out.flush();
 	}
 	
 	public static void ListShowsStartingOnTimeAndDate(Ticketmaster esql){//10
+		PrintWriter out = esql._console;
 		String date, time;
 		System.out.print("Please input the date and time you would like to see for all available shows: \n");
 		System.out.print("Date (MM/DD/YYYY): \n");
@@ -715,71 +1272,134 @@ public class Ticketmaster{
 		
 		String findShows = String.format("SELECT title FROM Movies WHERE mvid IN (SELECT mvid FROM Shows WHERE sdate = '%s' AND sttime = '%s');", date, time);
 		try {
-			List<List<String>> shows = esql.executeQueryAndReturnResult(findShows);
-			System.out.print("Shows playing on " + date + " " + time + ": \n");
+			List<List<String>> shows = esql.executeQueryAndReturnResult(findShows, null, ConnectionRouter.Staleness.READ_YOUR_WRITES);
+			out.print("Shows playing on " + date + " " + time + ": \n");
 			if (shows.size() == 0) {
-				System.out.print("No shows match your given query. \n");
+				out.print("No shows match your given query. \n");
 			}
 			else {
 				for (int i = 0; i < shows.size(); i++) {
 					for (int j = 0; j < (shows.get(i)).size(); j++) {
-						System.out.print("Showing: " + (shows.get(i)).get(j) + "\n");
+						out.print("Showing: " + (shows.get(i)).get(j) + "\n");
 					}
 				}
 			}
 		} catch(Exception e) {
-			System.out.print("An error occurred. Your error message is " + e.getMessage() + " Please try again." + '\n');			
+			out.print("An error occurred. Your error message is " + e.getMessage() + " Please try again." + '\n');			
+		}
+		out.flush();
+	}
+
+	public static void ListShowsStartingInTimeWindow(Ticketmaster esql){//15
+		PrintWriter out = esql._console;
+		System.out.print("Please input the date and the time window you would like to see all available shows for: \n");
+		System.out.print("Date (MM/DD/YYYY): \n");
+		String date = readText();
+		System.out.print("From time (HH:MM (Military Time)): \n");
+		String fromTime = readText();
+		System.out.print("To time (HH:MM (Military Time)): \n");
+		String toTime = readText();
+		System.out.print("City ID to search in (leave empty for any city): \n");
+		String city = readText().trim();
+		System.out.print("Cinema ID to search at (leave empty for any cinema): \n");
+		String cinema = readText().trim();
+
+		try {
+			long day = LocalDate.parse(date.trim(), DateTimeFormatter.ofPattern("M/d/yyyy")).toEpochDay();
+			DateTimeFormatter timeFormat = DateTimeFormatter.ofPattern("H:mm");
+			long from = ShowtimeIndex.key(day, LocalTime.parse(fromTime.trim(), timeFormat).toSecondOfDay());
+			long to = ShowtimeIndex.key(day, LocalTime.parse(toTime.trim(), timeFormat).toSecondOfDay());
+			long cityId = city.isEmpty() ? -1 : Long.parseLong(city);
+			long cid = cinema.isEmpty() ? -1 : Long.parseLong(cinema);
+
+			ShowtimeIndex.Result shows = esql.showIndex().window(from, to, cityId, cid);
+			out.print("Shows starting on " + date + " between " + fromTime + " and " + toTime + ": \n");
+			if (shows.size == 0) {
+				out.print("No shows match your given query. \n");
+			}
+			else {
+				Map<String, String> titles = movieTitles(esql, shows);
+				for (int i = 0; i < shows.size; i++) {
+					out.print("Showing: " + titles.get(String.valueOf(shows.mvid[i]))
+						+ " at " + LocalTime.ofSecondOfDay(shows.startSecond(i))
+						+ " - " + LocalTime.ofSecondOfDay(shows.end[i])
+						+ " (Show " + shows.sid[i] + ", Theater " + shows.tid[i] + ", Cinema " + shows.cid[i] + ")\n");
+				}
+			}
+		} catch(Exception e) {
+			out.print("An error occurred. Your error message is " + e.getMessage() + " Please try again." + '\n');
+		}
+		out.flush();
+	}
+
+	//one small query for the titles of the movies in a showtime index result
+	private static Map<String, String> movieTitles(Ticketmaster esql, ShowtimeIndex.Result shows) throws SQLException {
+		StringBuilder mvids = new StringBuilder();
+		for (int i = 0; i < shows.size; i++) {
+			if (i > 0) mvids.append(',');
+			mvids.append(shows.mvid[i]);
+		}
+		String titleQuery = String.format("SELECT mvid, title FROM Movies WHERE mvid IN (%s)", mvids);
+		Map<String, String> titles = new HashMap<String, String>();
+		for (List<String> row : esql.executeQueryAndReturnResult(titleQuery, null, ConnectionRouter.Staleness.READ_YOUR_WRITES)) {
+			titles.put(row.get(0), row.get(1));
 		}
+		return titles;
 	}
 
 	public static void ListMovieTitlesContainingLoveReleasedAfter2010(Ticketmaster esql){//11
+		PrintWriter out = esql._console;
 		String query = "SELECT title FROM Movies WHERE title LIKE '%Love%' AND rdate > '1/1/2011';";
 		try {
-			List<List<String>> movies = esql.executeQueryAndReturnResult(query);
-			System.out.print("Movies containing 'Love' and released after '2010' are: \n");
+			List<List<String>> movies = esql.executeQueryAndReturnResult(query, null, ConnectionRouter.Staleness.READ_YOUR_WRITES);
+			out.print("Movies containing 'Love' and released after '2010' are: \n");
 			if (movies.size() == 0) {
-				System.out.print("No movies match the given query. \n");
+				out.print("No movies match the given query. \n");
 			}
 			else {
 				for (int i = 0; i < movies.size(); i++) {
 					for (int j = 0; j < (movies.get(i)).size(); j++) {
-						System.out.print("Movie: " + (movies.get(i)).get(j) + "\n");
+						out.print("Movie: " + (movies.get(i)).get(j) + "\n");
 					}
 				}
 			}
 		} catch(Exception e) {
-			System.out.print("An error occurred. Your error message is " + e.getMessage() + " Please try again." + '\n');			
+			out.print("An error occurred. Your error message is " + e.getMessage() + " Please try again." + '\n');			
 		}
+		out.flush();
 	}
 
 	public static void ListUsersWithPendingBooking(Ticketmaster esql){//12
+		PrintWriter out = esql._console;
 		String query = "SELECT fname, lname, email FROM Users WHERE email IN (SELECT email from Bookings WHERE status = 'Pending')";
 		try {
-			List<List<String>> pendingUsers = esql.executeQueryAndReturnResult(query);
-			System.out.print("Users with pending bookings: \n");
+			List<List<String>> pendingUsers = esql.executeQueryAndReturnResult(query, null, ConnectionRouter.Staleness.READ_YOUR_WRITES);
+			out.print("Users with pending bookings: \n");
 			if (pendingUsers.size() == 0) {
-				System.out.print("No users match the given query. \n");
+				out.print("No users match the given query. \n");
 			}
 			else {
 				for (int i = 0; i < pendingUsers.size(); i++) {
 					for (int j = 0; j < (pendingUsers.get(i)).size(); j++) {
 						if (j == (pendingUsers.get(i).size() - 1)) {
-							System.out.print((pendingUsers.get(i)).get(j) + "\n");
+							out.print((pendingUsers.get(i)).get(j) + "\n");
 						}
 						else {
-							System.out.print((pendingUsers.get(i)).get(j) + " ");
+							out.print((pendingUsers.get(i)).get(j) + " ");
 						}
 						
 					}
 				}
 			}
 		} catch(Exception e) {
-			System.out.print("An error occurred. Your error message is " + e.getMessage() + " Please try again." + '\n');			
+			out.print("An error occurred. Your error message is " + e.getMessage() + " Please try again." + '\n');			
 		}
 
+		out.flush();
 	}
 	// CID --> TID --> SID --> MVID --> PRINT
 	public static void ListMovieAndShowInfoAtCinemaInDateRange(Ticketmaster esql){//13
+		PrintWriter out = esql._console;
 		System.out.print("Please enter the movie ID that you are inquiring?: \n");
 		int movie = readInt();
 		System.out.print("Please enter the cinema ID you would like to search at?: \n");
@@ -792,50 +1412,52 @@ public class Ticketmaster{
 		String Query3 = String.format("SELECT sdate, sttime FROM Shows WHERE sid = (%s) AND sdate BETWEEN '%s' AND '%s' AND mvid = '%s';", subQuery2, date1, date2, movie);
 		String movieQuery = String.format("SELECT title, duration FROM Movies WHERE mvid = %s", movie);
 		try {
-			List<List<String>> movies = esql.executeQueryAndReturnResult(movieQuery);
+			List<List<String>> movies = esql.executeQueryAndReturnResult(movieQuery, null, ConnectionRouter.Staleness.READ_YOUR_WRITES);
 			if (movies.size() == 0) {
-				System.out.print("No movies match the given query. \n");
+				out.print("No movies match the given query. \n");
 			}
 			else {
 				for (int i = 0; i < movies.size(); i++) {
 					for (int j = 0; j < (movies.get(i)).size(); j++) {
 						if (j == (movies.get(i).size() - 1)) {
-							System.out.print((movies.get(i)).get(j) + " (Duration)\n");
+							out.print((movies.get(i)).get(j) + " (Duration)\n");
 						}
 						else {
-							System.out.print((movies.get(i)).get(j) + ", ");
+							out.print((movies.get(i)).get(j) + ", ");
 						}
 						
 					}
 				}
 			}
 		} catch (Exception e) {
-			System.out.print("An error occurred. Your error message is " + e.getMessage() + " Please try again." + '\n');			
+			out.print("An error occurred. Your error message is " + e.getMessage() + " Please try again." + '\n');			
 		}
 		try {
-			List<List<String>> shows = esql.executeQueryAndReturnResult(Query3);
+			List<List<String>> shows = esql.executeQueryAndReturnResult(Query3, null, ConnectionRouter.Staleness.READ_YOUR_WRITES);
 			if (shows.size() == 0) {
-				System.out.print("No Shows match the given query. \n");
+				out.print("No Shows match the given query. \n");
 			}
 			else {
 				for (int i = 0; i < shows.size(); i++) {
 					for (int j = 0; j < (shows.get(i)).size(); j++) {
 						if (j == (shows.get(i).size() - 1)) {
-							System.out.print((shows.get(i)).get(j) + "\n");
+							out.print((shows.get(i)).get(j) + "\n");
 						}
 						else {
-							System.out.print((shows.get(i)).get(j) + ", ");
+							out.print((shows.get(i)).get(j) + ", ");
 						}
 						
 					}
 				}
 			}
 		} catch (Exception e) {
-			System.out.print("An error occurred. Your error message is " + e.getMessage() + " Please try again." + '\n');
+			out.print("An error occurred. Your error message is " + e.getMessage() + " Please try again." + '\n');
 		}
+		out.flush();
 	}
 	//EMAIL --> BOOKING(S) --> SID -->
 	public static void ListBookingInfoForUser(Ticketmaster esql){//14
+		PrintWriter out = esql._console;
 		System.out.print("Please enter the email of the user you would like to view the booking info for: \n");
 		String user = readText();
 		String bidQuery = String.format("SELECT bid from Bookings WHERE email = '%s'", user);
@@ -849,92 +1471,296 @@ public class Ticketmaster{
 		String cinemaSeat = String.format("SELECT sno FROM CinemaSeats WHERE tid = (%s)", theaterQuery);
 
 		try {
-			List<List<String>> movies = esql.executeQueryAndReturnResult(movieQuery);
+			List<List<String>> movies = esql.executeQueryAndReturnResult(movieQuery, user, ConnectionRouter.Staleness.READ_YOUR_WRITES);
 			if (movies.size() == 0) {
-				System.out.print("No movies booked for the user. \n");
+				out.print("No movies booked for the user. \n");
 			}
 			else {
 				for (int i = 0; i < movies.size(); i++) {
 					for (int j = 0; j < (movies.get(i)).size(); j++) {
 						if (j == (movies.get(i).size() - 1)) {
-							System.out.print((movies.get(i)).get(j) +  "\n");
+							out.print((movies.get(i)).get(j) +  "\n");
 						}
 						else {
-							System.out.print((movies.get(i)).get(j) + ", ");
+							out.print((movies.get(i)).get(j) + ", ");
 						}
 						
 					}
 				}
 			}
 		} catch (Exception e) {
-			System.out.print("An error occurred. Your error message is " + e.getMessage() + " Please try again." + '\n');			
+			out.print("An error occurred. Your error message is " + e.getMessage() + " Please try again." + '\n');			
 		}
 
 		try {
-			List<List<String>> shows = esql.executeQueryAndReturnResult(showQuery);
+			List<List<String>> shows = esql.executeQueryAndReturnResult(showQuery, user, ConnectionRouter.Staleness.READ_YOUR_WRITES);
 			if (shows.size() == 0) {
-				System.out.print("No Shows booked for the user. \n");
+				out.print("No Shows booked for the user. \n");
 			}
 			else {
 				for (int i = 0; i < shows.size(); i++) {
 					for (int j = 0; j < (shows.get(i)).size(); j++) {
 						if (j == (shows.get(i).size() - 1)) {
-							System.out.print((shows.get(i)).get(j) +  "\n");
+							out.print((shows.get(i)).get(j) +  "\n");
 						}
 						else {
-							System.out.print((shows.get(i)).get(j) + ", ");
+							out.print((shows.get(i)).get(j) + ", ");
 						}
 						
 					}
 				}
 			}
 		} catch (Exception e) {
-			System.out.print("An error occurred. Your error message is " + e.getMessage() + " Please try again." + '\n');			
+			out.print("An error occurred. Your error message is " + e.getMessage() + " Please try again." + '\n');			
 		}
 
 		try {
-			List<List<String>> theaters = esql.executeQueryAndReturnResult(thNameQuery);
+			List<List<String>> theaters = esql.executeQueryAndReturnResult(thNameQuery, user, ConnectionRouter.Staleness.READ_YOUR_WRITES);
 			if (theaters.size() == 0) {
-				System.out.print("No Theaters booked for the user. \n");
+				out.print("No Theaters booked for the user. \n");
 			}
 			else {
 				for (int i = 0; i < theaters.size(); i++) {
 					for (int j = 0; j < (theaters.get(i)).size(); j++) {
 						if (j == (theaters.get(i).size() - 1)) {
-							System.out.print("Theater Name: " + (theaters.get(i)).get(j) +  "\n");
+							out.print("Theater Name: " + (theaters.get(i)).get(j) +  "\n");
 						}
 						else {
-							System.out.print((theaters.get(i)).get(j) + ", ");
+							out.print((theaters.get(i)).get(j) + ", ");
 						}
 						
 					}
 				}
 			}
 		} catch (Exception e) {
-			System.out.print("An error occurred. Your error message is " + e.getMessage() + " Please try again." + '\n');			
+			out.print("An error occurred. Your error message is " + e.getMessage() + " Please try again." + '\n');			
 		}
 
 		try {
-			List<List<String>> seats = esql.executeQueryAndReturnResult(showSeats);
+			List<List<String>> seats = esql.executeQueryAndReturnResult(showSeats, user, ConnectionRouter.Staleness.READ_YOUR_WRITES);
 			if (seats.size() == 0) {
-				System.out.print("No seats booked for the user. \n");
+				out.print("No seats booked for the user. \n");
 			}
 			else {
 				for (int i = 0; i < seats.size(); i++) {
 					for (int j = 0; j < (seats.get(i)).size(); j++) {
 						if (j == (seats.get(i).size() - 1)) {
-							System.out.print("Cinema Seat number: " + (seats.get(i)).get(j) +  "\n");
+							out.print("Cinema Seat number: " + (seats.get(i)).get(j) +  "\n");
 						}
 						else {
-							System.out.print((seats.get(i)).get(j) + ", ");
+							out.print((seats.get(i)).get(j) + ", ");
 						}
 						
 					}
 				}
 			}
 		} catch (Exception e) {
-			System.out.print("An error occurred. Your error message is " + e.getMessage() + " Please try again." + '\n');			
+			out.print("An error occurred. Your error message is " + e.getMessage() + " Please try again." + '\n');			
 		}
+		out.flush();
 	}
 	
-}
\ No newline at end of file
+	public static void ExportTable(Ticketmaster esql){//16
+		String[] tables = {"Cities", "Cinemas", "Theaters", "CinemaSeats", "Movies", "Users",
+			"Shows", "Bookings", "Payments", "ShowSeats", "Plays"};
+		System.out.print("Please enter the table you would like to export " + Arrays.toString(tables) + ": \n");
+		String table = readText().trim();
+		boolean checkTable = false;
+		for (int i = 0; i < tables.length; i++) {
+			if (tables[i].equalsIgnoreCase(table)) {
+				table = tables[i];
+				checkTable = true;
+			}
+		}
+		if (!checkTable) {
+			System.out.print("Your input is invalid! " + table + " is not a table. \n");
+			return;
+		}
+		System.out.print("Please enter the output format (table/csv/jsonl): \n");
+		ResultRenderer.Format format;
+		try {
+			format = ResultRenderer.Format.valueOf(readText().trim().toUpperCase());
+		} catch(Exception e) {
+			System.out.print("Your input is invalid! The format must be table, csv or jsonl. \n");
+			return;
+		}
+		System.out.print("Please enter the file to export to (leave empty to page through it on screen): \n");
+		String path = readText().trim();
+
+		String query = "SELECT * FROM " + table;
+		try {
+			if (path.isEmpty()) {
+				esql.executeQueryAndRender(query, new ResultRenderer(esql._console, format, PAGE_SIZE, in), ConnectionRouter.Staleness.ANY);
+			}
+			else {
+				long start = System.nanoTime();
+				ResultRenderer renderer = ResultRenderer.toFile(path, format);
+				try {
+					long rows = esql.executeQueryAndRender(query, renderer, ConnectionRouter.Staleness.ANY);
+					System.out.print(rows + " rows of " + table + " exported to " + path + " in "
+						+ (System.nanoTime() - start) / 1000000 + " ms. \n");
+				} finally {
+					renderer.close();
+				}
+			}
+		} catch(Exception e) {
+			System.out.print("An error occurred. Your error message is " + e.getMessage() + " Please try again." + '\n');
+		}
+	}
+
+	public static void RevenueReports(Ticketmaster esql){//17
+		System.out.print("Please select the report you would like to see: \n");
+		System.out.print("1. Revenue and occupancy per movie \n");
+		System.out.print("2. Revenue and occupancy per cinema \n");
+		System.out.print("3. Revenue and occupancy per day \n");
+		System.out.print("4. Rebuild the summaries from the bookings and payments \n");
+		String query;
+		switch (readChoice()) {
+			case 1: query = ShowStats.REPORT_BY_MOVIE; break;
+			case 2: query = ShowStats.REPORT_BY_CINEMA; break;
+			case 3: query = ShowStats.REPORT_BY_DAY; break;
+			case 4:
+				try {
+					int shows = ShowStats.rebuild(esql._connection);
+					System.out.print("Summaries rebuilt for " + shows + " shows. \n");
+				} catch(Exception e) {
+					System.out.print("An error occurred. Your error message is " + e.getMessage() + " Please try again." + '\n');
+				}
+				return;
+			default:
+				System.out.print("Your input is invalid! \n");
+				return;
+		}
+		try {
+			//fold in the changes recorded since the last report before reading
+			ShowStats.applyDeltas(esql._connection);
+			if (esql.executeQueryAndRender(query, new ResultRenderer(esql._console, ResultRenderer.Format.TABLE, PAGE_SIZE, in)) == 0) {
+				System.out.print("No shows have been summarised yet. \n");
+			}
+		} catch(Exception e) {
+			System.out.print("An error occurred. Your error message is " + e.getMessage() + " Please try again." + '\n');
+		}
+	}
+
+	public static void BulkImportUsers(Ticketmaster esql){//18
+		System.out.print("Please enter the CSV file to import users from (email,lname,fname,phone,pwd): \n");
+		String path = readText().trim();
+		System.out.print("Are the passwords in the file plain text that still needs to be encrypted? (y/n): \n");
+		boolean hash = readText().trim().equalsIgnoreCase("y");
+
+		ForkJoinPool pool = new ForkJoinPool();
+		try {
+			BufferedReader file = new BufferedReader(new InputStreamReader(
+				new FileInputStream(path), StandardCharsets.UTF_8), ResultRenderer.BUFFER_SIZE);
+			UserImporter.Report report;
+			try {
+				System.out.print("Importing users using " + pool.getParallelism() + " threads for encryption...\n");
+				report = new UserImporter(esql._connection, hash, pool, esql.emailFilter()).importCsv(file);
+			} finally {
+				file.close();
+				esql._router.markWrite(null);
+			}
+			System.out.print("Users read: " + report.read + '\n');
+			System.out.print("Users added: " + report.inserted + '\n');
+			System.out.print("Duplicate emails skipped: " + report.duplicates + '\n');
+			if (!report.duplicateExamples.isEmpty()) {
+				System.out.print("For example: " + report.duplicateExamples + '\n');
+			}
+			System.out.print("Malformed lines skipped: " + report.rejected + '\n');
+			System.out.print(String.format("Took %.1f s (%.0f users/s)%n", report.nanos / 1e9, report.rowsPerSecond()));
+		} catch(Exception e) {
+			System.out.print("An error occurred. Your error message is " + e.getMessage() + " Please try again." + '\n');
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	public static void BrowseShowsByLocation(Ticketmaster esql){//19
+		PrintWriter out = esql._console;
+		System.out.print("Please enter your city (e.g. Riverside or Riverside, CA) or zip code: \n");
+		String place = readText();
+		System.out.print("From date (MM/DD/YYYY): \n");
+		String fromDate = readText();
+		System.out.print("To date (MM/DD/YYYY): \n");
+		String toDate = readText();
+
+		try {
+			DateTimeFormatter dateFormat = DateTimeFormatter.ofPattern("M/d/yyyy");
+			long from = ShowtimeIndex.key(LocalDate.parse(fromDate.trim(), dateFormat).toEpochDay(), 0);
+			long to = ShowtimeIndex.key(LocalDate.parse(toDate.trim(), dateFormat).toEpochDay() + 1, 0) - 1;
+
+			LocationHierarchy locations = esql.locations();
+			int[] cities = locations.find(place);
+			if (cities.length == 0) {
+				out.print("No city matches " + place.trim() + ". \n");
+			}
+			else {
+				for (int city : cities) {
+					out.print(locations.describeCity(city) + ": " + locations.cinemaCount(city) + " cinema(s), "
+						+ locations.theaterCount(city) + " theater(s) \n");
+				}
+				ShowtimeIndex.Result shows = esql.showIndex().window(from, to, locations.cityIds(cities));
+				if (shows.size == 0) {
+					out.print("No shows match your given query. \n");
+				}
+				else {
+					Map<String, String> titles = movieTitles(esql, shows);
+					for (int i = 0; i < shows.size; i++) {
+						int cinema = locations.cinema(shows.cid[i]);
+						out.print(LocalDate.ofEpochDay(shows.epochDay(i)).format(dateFormat)
+							+ " " + LocalTime.ofSecondOfDay(shows.startSecond(i))
+							+ " - " + LocalTime.ofSecondOfDay(shows.end[i])
+							+ " " + titles.get(String.valueOf(shows.mvid[i]))
+							+ " at " + (cinema < 0 ? "Cinema " + shows.cid[i] : locations.cinemaName(cinema))
+							+ ", " + (cinema < 0 ? "Theater " + shows.tid[i] : locations.theaterName(cinema, shows.tid[i]))
+							+ " (Show " + shows.sid[i] + ")\n");
+					}
+				}
+			}
+		} catch(Exception e) {
+			out.print("An error occurred. Your error message is " + e.getMessage() + " Please try again." + '\n');
+		}
+		out.flush();
+	}
+
+	public static void ViewSeatMap(Ticketmaster esql){//20
+		PrintWriter out = esql._console;
+		System.out.print("Please input the SID of the show you would like to see the seats of: \n");
+		int sid = readInt();
+		try {
+			SeatMap seats = esql.seatMap(sid);
+			if (seats.size() == 0) {
+				out.print("Show " + sid + " has no seats. \n");
+			}
+			else {
+				out.print("Seat map of show " + sid + " (-- is taken): \n");
+				seats.print(out);
+			}
+		} catch(Exception e) {
+			out.print("An error occurred. Your error message is " + e.getMessage() + " Please try again." + '\n');
+		}
+		out.flush();
+	}
+
+	public static void ReconcilePayments(Ticketmaster esql){//21
+		System.out.print("Please enter the file to write the discrepancy report to: \n");
+		String path = readText().trim();
+
+		int partitions = Runtime.getRuntime().availableProcessors();
+		try {
+			System.out.print("Reconciling payments using " + partitions + " connections...\n");
+			PaymentReconciler.Report report = new PaymentReconciler(esql._url, esql._user, esql._passwd, partitions)
+				.reconcile(new File(path));
+			System.out.print("Bookings checked: " + report.bookings + '\n');
+			System.out.print("Payments checked: " + report.payments + '\n');
+			System.out.print("Paid bookings without a payment: " + report.paidWithoutPayment + '\n');
+			System.out.print("Payments on cancelled bookings: " + report.paymentOnCancelled + '\n');
+			System.out.print("Payments not matching the seat prices: " + report.amountMismatch + '\n');
+			System.out.print(String.format("Took %.1f s over %d partitions, %d discrepancies written to %s%n",
+				report.nanos / 1e9, report.partitions, report.discrepancies(), path));
+		} catch(Exception e) {
+			System.out.print("An error occurred. Your error message is " + e.getMessage() + " Please try again." + '\n');
+		}
+	}
+
+}
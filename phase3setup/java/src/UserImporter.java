@@ -0,0 +1,271 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.regex.Pattern;
+
+/**
+ * This class bulk loads users from a stream in the Users.csv layout
+ * (email,lname,fname,phone,pwd).  Input is processed in chunks: while one
+ * chunk is inserted with batched INSERT ... ON CONFLICT DO NOTHING and
+ * committed, the passwords of the next chunk are hashed in parallel on a
+ * fork-join pool.
+ *
+ */
+public class UserImporter {
+	//rows read, hashed and committed together
+	private static final int CHUNK_SIZE = 10000;
+	//rows sent to the server per executeBatch
+	private static final int BATCH_SIZE = 1000;
+	//passwords hashed by one fork-join leaf task
+	private static final int HASH_THRESHOLD = 256;
+	//duplicate emails kept in the report as examples
+	private static final int MAX_EXAMPLES = 20;
+
+	private static final String INSERT_USER =
+		"INSERT INTO Users(email, lname, fname, phone, pwd) VALUES (?, ?, ?, ?, ?)"
+		+ " ON CONFLICT (email) DO NOTHING";
+	//a notification per row makes the server check each against every other
+	//queued in the transaction, so a chunk sends a single one to rebuild instead
+	private static final String QUIET = "SET LOCAL ticketmaster.notify_users = off";
+	private static final String NOTIFY_REBUILD = "SELECT pg_notify('" + EmailFilter.CHANNEL + "', '')";
+
+	//phone is NUMERIC(10, 0) and may be empty
+	private static final Pattern PHONE = Pattern.compile("\\d{0,10}");
+	//an already hashed pwd is the SHA-256 hex digest that fills CHAR(64)
+	private static final Pattern PWD_HASH = Pattern.compile("[0-9a-fA-F]{64}");
+	//column widths of email, lname and fname in Users
+	private static final int EMAIL_WIDTH = 64;
+	private static final int NAME_WIDTH = 32;
+
+	//MessageDigest is not thread safe, each pool thread keeps its own
+	private static final ThreadLocal<MessageDigest> SHA = new ThreadLocal<MessageDigest>() {
+		@Override
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	};
+
+	/**
+	 * The outcome of an import.
+	 */
+	public static class Report {
+		public long read = 0;
+		public long inserted = 0;
+		public long duplicates = 0;
+		public long rejected = 0;
+		public long nanos = 0;
+		public final List<String> duplicateExamples = new ArrayList<String>();
+
+		public double rowsPerSecond() {
+			return nanos == 0 ? 0 : read * 1e9 / nanos;
+		}
+	}
+
+	private static class Chunk {
+		final List<String[]> rows = new ArrayList<String[]>(CHUNK_SIZE);
+		ForkJoinTask<?> hashing;
+	}
+
+	private final Connection _connection;
+	private final boolean _hashPasswords;
+	private final ForkJoinPool _pool;
+	private final EmailFilter _emails;
+
+	/**
+	 * @param connection the connection to insert with, its autocommit
+	 *        setting is restored afterwards
+	 * @param hashPasswords true if the pwd column holds plain text passwords
+	 *        to be hashed, false if it already holds the SHA-256 hex digest
+	 * @param pool the pool to hash on
+	 * @param emails the filter to record imported emails in, may be null
+	 */
+	public UserImporter(Connection connection, boolean hashPasswords, ForkJoinPool pool, EmailFilter emails) {
+		this._connection = connection;
+		this._hashPasswords = hashPasswords;
+		this._pool = pool;
+		this._emails = emails;
+	}
+
+	/**
+	 * Method to import every user of the stream.  Existing emails are
+	 * skipped and counted as duplicates.  Lines without five fields, with a
+	 * value too long for its column, a malformed phone number or, when not
+	 * hashing, a pwd that is not a SHA-256 hex digest are counted as
+	 * rejected.  A header line starting with "email" is skipped.
+	 *
+	 * @param in the CSV stream
+	 * @return the counts and throughput of the import
+	 * @throws java.io.IOException when reading the stream fails
+	 * @throws java.sql.SQLException when inserting fails, the chunk in
+	 *         progress is rolled back and earlier chunks stay committed
+	 */
+	public Report importCsv(BufferedReader in) throws IOException, SQLException {
+		Report report = new Report();
+		long start = System.nanoTime();
+		boolean autoCommit = _connection.getAutoCommit();
+		_connection.setAutoCommit(false);
+		PreparedStatement stmt = _connection.prepareStatement(INSERT_USER);
+		try {
+			Chunk pending = null;
+			while (true) {
+				Chunk chunk = readChunk(in, report);
+				if (chunk != null && _hashPasswords) {
+					chunk.hashing = _pool.submit(new HashTask(chunk.rows, 0, chunk.rows.size()));
+				}
+				//the previous chunk is inserted while this one is hashed
+				if (pending != null) {
+					if (pending.hashing != null) {
+						pending.hashing.join();
+					}
+					insert(stmt, pending, report);
+				}
+				if (chunk == null) {
+					break;
+				}
+				pending = chunk;
+			}
+		} catch (SQLException e) {
+			_connection.rollback();
+			throw e;
+		} finally {
+			stmt.close();
+			_connection.setAutoCommit(autoCommit);
+			report.nanos = System.nanoTime() - start;
+		}
+		return report;
+	}
+
+	//returns null at the end of the stream
+	private Chunk readChunk(BufferedReader in, Report report) throws IOException {
+		Chunk chunk = new Chunk();
+		String line;
+		while (chunk.rows.size() < CHUNK_SIZE && (line = in.readLine()) != null) {
+			if (line.isEmpty() || (report.read == 0 && chunk.rows.isEmpty() && line.startsWith("email,"))) {
+				continue;
+			}
+			report.read++;
+			String[] fields = line.split(",", -1);
+			if (!isValid(fields)) {
+				report.rejected++;
+				continue;
+			}
+			chunk.rows.add(fields);
+		}
+		return chunk.rows.isEmpty() ? null : chunk;
+	}
+
+	//true if the row fits the Users columns, so it cannot fail the batch it is inserted in
+	private boolean isValid(String[] fields) {
+		return fields.length == 5
+			&& !fields[0].isEmpty()
+			&& fitsIn(fields[0], EMAIL_WIDTH)
+			&& fitsIn(fields[1], NAME_WIDTH)
+			&& fitsIn(fields[2], NAME_WIDTH)
+			&& PHONE.matcher(fields[3].trim()).matches()
+			&& (_hashPasswords || PWD_HASH.matcher(fields[4]).matches());
+	}
+
+	//VARCHAR(n) counts characters, not UTF-16 units
+	private static boolean fitsIn(String value, int width) {
+		return value.codePointCount(0, value.length()) <= width;
+	}
+
+	private void insert(PreparedStatement stmt, Chunk chunk, Report report) throws SQLException {
+		List<String[]> rows = chunk.rows;
+		long inserted = report.inserted;
+		execute(QUIET);
+		for (int from = 0; from < rows.size(); from += BATCH_SIZE) {
+			int to = Math.min(from + BATCH_SIZE, rows.size());
+			for (int i = from; i < to; i++) {
+				String[] row = rows.get(i);
+				stmt.setString(1, row[0]);
+				stmt.setString(2, row[1]);
+				stmt.setString(3, row[2]);
+				if (row[3].trim().isEmpty()) {
+					stmt.setNull(4, Types.NUMERIC);
+				}
+				else {
+					stmt.setLong(4, Long.parseLong(row[3].trim()));
+				}
+				stmt.setString(5, row[4]);
+				stmt.addBatch();
+			}
+			int[] counts = stmt.executeBatch();
+			for (int i = 0; i < counts.length; i++) {
+				if (counts[i] == 0) {
+					report.duplicates++;
+					if (report.duplicateExamples.size() < MAX_EXAMPLES) {
+						report.duplicateExamples.add(rows.get(from + i)[0]);
+					}
+				}
+				else {
+					report.inserted++;
+				}
+			}
+		}
+		if (report.inserted > inserted) {
+			execute(NOTIFY_REBUILD);
+		}
+		_connection.commit();
+		//duplicates are registered as well, so every email of the chunk is added
+		if (_emails != null) {
+			for (String[] row : rows) {
+				_emails.add(row[0]);
+			}
+		}
+	}
+
+	private void execute(String sql) throws SQLException {
+		Statement stmt = _connection.createStatement();
+		try {
+			stmt.execute(sql);
+		} finally {
+			stmt.close();
+		}
+	}
+
+	//hashes the pwd field of rows [from, to) in place, splitting until small enough
+	private static class HashTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final List<String[]> _rows;
+		private final int _from;
+		private final int _to;
+
+		HashTask(List<String[]> rows, int from, int to) {
+			this._rows = rows;
+			this._from = from;
+			this._to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (_to - _from <= HASH_THRESHOLD) {
+				MessageDigest md = SHA.get();
+				for (int i = _from; i < _to; i++) {
+					String[] row = _rows.get(i);
+					row[4] = Ticketmaster.toHexString(md.digest(row[4].getBytes(StandardCharsets.UTF_8)));
+				}
+				return;
+			}
+			int mid = (_from + _to) >>> 1;
+			invokeAll(new HashTask(_rows, _from, mid), new HashTask(_rows, mid, _to));
+		}
+	}
+}
@@ -0,0 +1,23 @@
+#!/bin/bash
+# Starts a streaming read replica of the database started by startdb.sh.
+# Usage: startreplica.sh [replica port], defaults to $PGPORT + 1
+folder=/tmp/$(logname)/myreplica
+PGDATA=$folder/data
+PGSOCKETS=$folder/sockets
+export PGDATA
+export PGSOCKETS
+port=${1:-$((PGPORT + 1))}
+
+#Initialize folders
+rm -fr $PGDATA
+mkdir -p $PGDATA
+chmod 700 $PGDATA
+rm -fr $PGSOCKETS
+mkdir -p $PGSOCKETS
+
+#Copy the primary and configure it as a standby (-R)
+pg_basebackup -h localhost -p $PGPORT -D $PGDATA -X stream -R
+
+#Start folder
+pg_ctl -o "-p $port -c unix_socket_directories=$PGSOCKETS" -D $PGDATA -l $folder/logfile start
+echo "Replica listening on port $port"
@@ -0,0 +1,7 @@
+#!/bin/bash
+folder=/tmp/$(logname)/myreplica
+PGDATA=$folder/data
+PGSOCKETS=$folder/sockets
+export PGDATA
+export PGSOCKETS
+pg_ctl -D $PGDATA -l $folder/logfile stop
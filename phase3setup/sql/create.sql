@@ -1,3 +1,5 @@
+DROP TABLE IF EXISTS ShowStatsDelta;
+DROP TABLE IF EXISTS ShowStats;
 DROP TABLE IF EXISTS Plays;
 DROP TABLE IF EXISTS ShowSeats;
 DROP TABLE IF EXISTS Payments;
@@ -239,3 +241,282 @@ COPY Plays (
 )
 FROM 'Plays.csv'
 WITH DELIMITER ',';
+
+
+-------------
+-- INDEXES --
+-------------
+
+-- Built after the load, which is faster than maintaining them row by row.
+-- Seats are looked up by booking when seats change hands, when a booking is
+-- cancelled or reinstated and by the per-partition bid range scans of
+-- PaymentReconciler.
+CREATE INDEX showseats_bid_idx ON ShowSeats(bid);
+
+
+------------------
+-- ID SEQUENCES --
+------------------
+
+-- IdAllocator reserves a block of ids per nextval, so the increment is the
+-- block size. OWNED BY drops each sequence together with its table.
+CREATE SEQUENCE bookings_bid_seq INCREMENT BY 1000 OWNED BY Bookings.bid;
+CREATE SEQUENCE payments_pid_seq INCREMENT BY 1000 OWNED BY Payments.pid;
+CREATE SEQUENCE shows_sid_seq INCREMENT BY 1000 OWNED BY Shows.sid;
+CREATE SEQUENCE movies_mvid_seq INCREMENT BY 1000 OWNED BY Movies.mvid;
+CREATE SEQUENCE showseats_ssid_seq INCREMENT BY 1000 OWNED BY ShowSeats.ssid;
+
+-- Start after the ids loaded above
+SELECT setval('bookings_bid_seq', (SELECT COALESCE(MAX(bid), 0) + 1 FROM Bookings), false);
+SELECT setval('payments_pid_seq', (SELECT COALESCE(MAX(pid), 0) + 1 FROM Payments), false);
+SELECT setval('shows_sid_seq', (SELECT COALESCE(MAX(sid), 0) + 1 FROM Shows), false);
+SELECT setval('movies_mvid_seq', (SELECT COALESCE(MAX(mvid), 0) + 1 FROM Movies), false);
+SELECT setval('showseats_ssid_seq', (SELECT COALESCE(MAX(ssid), 0) + 1 FROM ShowSeats), false);
+
+
+-------------------------
+-- REPORTING SUMMARIES --
+-------------------------
+
+-- Revenue and seats per show, kept current from ShowStatsDelta. A show plays
+-- in one cinema (enforced by plays_one_cinema below), so a row is also the
+-- (show, day, cinema, movie) grain the reports group by. Cancelled bookings
+-- count toward neither: their seats are not sold, and a payment left on one
+-- is owed back (PaymentReconciler reports it as PAYMENT_ON_CANCELLED).
+CREATE TABLE ShowStats (
+    sid BIGINT NOT NULL,  -- Show ID
+    sdate DATE NOT NULL,  -- Show date
+    cid BIGINT,  -- Cinema ID, NULL while the show plays nowhere
+    mvid BIGINT NOT NULL,  -- Movie ID
+    revenue NUMERIC(14, 2) NOT NULL,  -- Sum of payments of bookings not Cancelled
+    seats_sold INTEGER NOT NULL,  -- Show seats held by a booking not Cancelled
+    seats_total INTEGER NOT NULL,  -- Show seats on sale
+    PRIMARY KEY(sid)
+);
+
+-- Changes to ShowStats recorded by triggers, folded in by ShowStats.applyDeltas
+CREATE TABLE ShowStatsDelta (
+    seq BIGSERIAL NOT NULL,
+    sid BIGINT NOT NULL,  -- Show ID
+    revenue NUMERIC(14, 2) NOT NULL,
+    seats_sold INTEGER NOT NULL,
+    seats_total INTEGER NOT NULL,
+    PRIMARY KEY(seq)
+);
+
+INSERT INTO ShowStats (sid, sdate, cid, mvid, revenue, seats_sold, seats_total)
+SELECT s.sid, s.sdate,
+       (SELECT MIN(t.cid) FROM Plays p, Theaters t WHERE p.sid = s.sid AND t.tid = p.tid),
+       s.mvid,
+       COALESCE((SELECT SUM(pm.amount) FROM Payments pm, Bookings b
+                 WHERE b.sid = s.sid AND pm.bid = b.bid AND b.status <> 'Cancelled'), 0),
+       (SELECT COUNT(*) FROM ShowSeats ss, Bookings b
+        WHERE ss.sid = s.sid AND b.bid = ss.bid AND b.status <> 'Cancelled'),
+       (SELECT COUNT(*) FROM ShowSeats ss WHERE ss.sid = s.sid)
+FROM Shows s;
+
+-- 1 if a show seat held by this booking counts as sold, else 0
+CREATE OR REPLACE FUNCTION seat_sold(p_bid BIGINT) RETURNS INTEGER AS $$
+    SELECT CASE WHEN p_bid IS NOT NULL AND NOT EXISTS
+                (SELECT 1 FROM Bookings WHERE bid = p_bid AND status = 'Cancelled')
+           THEN 1 ELSE 0 END;
+$$ LANGUAGE sql STABLE;
+
+CREATE OR REPLACE FUNCTION showseats_stats_delta() RETURNS TRIGGER AS $$
+BEGIN
+    IF TG_OP = 'UPDATE' AND OLD.sid = NEW.sid THEN
+        IF seat_sold(OLD.bid) <> seat_sold(NEW.bid) THEN
+            INSERT INTO ShowStatsDelta (sid, revenue, seats_sold, seats_total)
+            VALUES (NEW.sid, 0, seat_sold(NEW.bid) - seat_sold(OLD.bid), 0);
+        END IF;
+        RETURN NULL;
+    END IF;
+    IF TG_OP IN ('UPDATE', 'DELETE') THEN
+        INSERT INTO ShowStatsDelta (sid, revenue, seats_sold, seats_total)
+        VALUES (OLD.sid, 0, -seat_sold(OLD.bid), -1);
+    END IF;
+    IF TG_OP IN ('INSERT', 'UPDATE') THEN
+        INSERT INTO ShowStatsDelta (sid, revenue, seats_sold, seats_total)
+        VALUES (NEW.sid, 0, seat_sold(NEW.bid), 1);
+    END IF;
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER showseats_stats AFTER INSERT OR UPDATE OF sid, bid OR DELETE ON ShowSeats
+FOR EACH ROW EXECUTE PROCEDURE showseats_stats_delta();
+
+CREATE OR REPLACE FUNCTION payments_stats_delta() RETURNS TRIGGER AS $$
+BEGIN
+    IF TG_OP IN ('UPDATE', 'DELETE') THEN
+        INSERT INTO ShowStatsDelta (sid, revenue, seats_sold, seats_total)
+        SELECT b.sid, -OLD.amount, 0, 0 FROM Bookings b
+        WHERE b.bid = OLD.bid AND b.status <> 'Cancelled';
+    END IF;
+    IF TG_OP IN ('INSERT', 'UPDATE') THEN
+        INSERT INTO ShowStatsDelta (sid, revenue, seats_sold, seats_total)
+        SELECT b.sid, NEW.amount, 0, 0 FROM Bookings b
+        WHERE b.bid = NEW.bid AND b.status <> 'Cancelled';
+    END IF;
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER payments_stats AFTER INSERT OR UPDATE OF bid, amount OR DELETE ON Payments
+FOR EACH ROW EXECUTE PROCEDURE payments_stats_delta();
+
+-- A booking entering or leaving Cancelled takes its seats and payment out of
+-- or back into the summary; moving it to another show moves its payment
+CREATE OR REPLACE FUNCTION bookings_stats_delta() RETURNS TRIGGER AS $$
+DECLARE
+    was_counted BOOLEAN := OLD.status <> 'Cancelled';
+    counted BOOLEAN := NEW.status <> 'Cancelled';
+BEGIN
+    IF was_counted = counted AND (NOT counted OR OLD.sid = NEW.sid) THEN
+        RETURN NULL;
+    END IF;
+    IF was_counted <> counted THEN
+        INSERT INTO ShowStatsDelta (sid, revenue, seats_sold, seats_total)
+        SELECT ss.sid, 0, CASE WHEN counted THEN COUNT(*) ELSE -COUNT(*) END, 0
+        FROM ShowSeats ss WHERE ss.bid = NEW.bid GROUP BY ss.sid;
+    END IF;
+    IF was_counted THEN
+        INSERT INTO ShowStatsDelta (sid, revenue, seats_sold, seats_total)
+        SELECT OLD.sid, -pm.amount, 0, 0 FROM Payments pm WHERE pm.bid = OLD.bid;
+    END IF;
+    IF counted THEN
+        INSERT INTO ShowStatsDelta (sid, revenue, seats_sold, seats_total)
+        SELECT NEW.sid, pm.amount, 0, 0 FROM Payments pm WHERE pm.bid = NEW.bid;
+    END IF;
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER bookings_stats AFTER UPDATE OF status, sid ON Bookings
+FOR EACH ROW EXECUTE PROCEDURE bookings_stats_delta();
+
+-- ShowStats credits a show to a single cinema, so a show may only play in
+-- theaters of one cinema. Locking the show serializes concurrent Plays inserts.
+CREATE OR REPLACE FUNCTION plays_one_cinema() RETURNS TRIGGER AS $$
+BEGIN
+    PERFORM 1 FROM Shows WHERE sid = NEW.sid FOR UPDATE;
+    IF EXISTS (SELECT 1 FROM Plays p, Theaters t, Theaters nt
+               WHERE p.sid = NEW.sid AND p.tid <> NEW.tid AND t.tid = p.tid
+                 AND nt.tid = NEW.tid AND t.cid <> nt.cid) THEN
+        RAISE EXCEPTION 'Show % already plays at another cinema', NEW.sid
+            USING ERRCODE = 'integrity_constraint_violation';
+    END IF;
+    RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER plays_one_cinema BEFORE INSERT OR UPDATE ON Plays
+FOR EACH ROW EXECUTE PROCEDURE plays_one_cinema();
+
+-- Moving a theater to another cinema must not split a show across cinemas
+CREATE OR REPLACE FUNCTION theaters_one_cinema() RETURNS TRIGGER AS $$
+BEGIN
+    IF EXISTS (SELECT 1 FROM Plays p, Plays o, Theaters t
+               WHERE p.tid = NEW.tid AND o.sid = p.sid AND o.tid <> NEW.tid
+                 AND t.tid = o.tid AND t.cid <> NEW.cid) THEN
+        RAISE EXCEPTION 'Theater % plays shows that also play at another cinema', NEW.tid
+            USING ERRCODE = 'integrity_constraint_violation';
+    END IF;
+    RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER theaters_one_cinema BEFORE UPDATE OF cid ON Theaters
+FOR EACH ROW EXECUTE PROCEDURE theaters_one_cinema();
+
+-- An empty delta makes the next apply pick up the show's new cinema
+CREATE OR REPLACE FUNCTION plays_stats_delta() RETURNS TRIGGER AS $$
+BEGIN
+    INSERT INTO ShowStatsDelta (sid, revenue, seats_sold, seats_total)
+    VALUES (CASE WHEN TG_OP = 'DELETE' THEN OLD.sid ELSE NEW.sid END, 0, 0, 0);
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER plays_stats AFTER INSERT OR DELETE ON Plays
+FOR EACH ROW EXECUTE PROCEDURE plays_stats_delta();
+
+CREATE OR REPLACE FUNCTION shows_stats_delete() RETURNS TRIGGER AS $$
+BEGIN
+    DELETE FROM ShowStats WHERE sid = OLD.sid;
+    DELETE FROM ShowStatsDelta WHERE sid = OLD.sid;
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER shows_stats AFTER DELETE ON Shows
+FOR EACH ROW EXECUTE PROCEDURE shows_stats_delete();
+
+
+----------------------
+-- LOCATION CHANGES --
+----------------------
+
+-- Clients caching the location hierarchy LISTEN on this channel and reload
+-- when it fires
+CREATE OR REPLACE FUNCTION location_changed() RETURNS TRIGGER AS $$
+BEGIN
+    PERFORM pg_notify('location_changed', TG_TABLE_NAME);
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER cities_changed AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON Cities
+FOR EACH STATEMENT EXECUTE PROCEDURE location_changed();
+
+CREATE TRIGGER cinemas_changed AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON Cinemas
+FOR EACH STATEMENT EXECUTE PROCEDURE location_changed();
+
+CREATE TRIGGER theaters_changed AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON Theaters
+FOR EACH STATEMENT EXECUTE PROCEDURE location_changed();
+
+
+------------------
+-- USER CHANGES --
+------------------
+
+-- Clients holding an EmailFilter LISTEN on this channel and add each email
+-- sent. Bulk loads set ticketmaster.notify_users to off and send an empty
+-- payload per transaction instead, telling clients to rebuild their filter.
+CREATE OR REPLACE FUNCTION user_added() RETURNS TRIGGER AS $$
+BEGIN
+    IF current_setting('ticketmaster.notify_users', true) IS DISTINCT FROM 'off' THEN
+        PERFORM pg_notify('user_added', NEW.email);
+    END IF;
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER users_added AFTER INSERT OR UPDATE OF email ON Users
+FOR EACH ROW EXECUTE PROCEDURE user_added();
+
+
+------------------
+-- SHOW CHANGES --
+------------------
+
+-- Clients caching the showtime index LISTEN on this channel and refresh the
+-- show whose sid is sent. Identical payloads of one transaction are merged,
+-- so a show and its plays removed together arrive as one notification.
+CREATE OR REPLACE FUNCTION show_changed() RETURNS TRIGGER AS $$
+BEGIN
+    IF TG_OP <> 'INSERT' THEN
+        PERFORM pg_notify('show_changed', OLD.sid::text);
+    END IF;
+    IF TG_OP <> 'DELETE' THEN
+        PERFORM pg_notify('show_changed', NEW.sid::text);
+    END IF;
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER shows_changed AFTER INSERT OR UPDATE OR DELETE ON Shows
+FOR EACH ROW EXECUTE PROCEDURE show_changed();
+
+CREATE TRIGGER plays_changed AFTER INSERT OR UPDATE OR DELETE ON Plays
+FOR EACH ROW EXECUTE PROCEDURE show_changed();